@@ -1,141 +1,3315 @@
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 // ======= Domain Enums & Records =======
 enum Status { PENDING, SUCCESS, FAILED }
 
-enum Currency { INR, USD }
+enum Currency {
+    INR("\u20B9", 2), USD("$", 2);
+    final String symbol; final int scale; final long minorPerMajor;
+    Currency(String symbol, int scale){
+        this.symbol = symbol; this.scale = scale;
+        long f = 1; for(int i=0;i<scale;i++) f *= 10; this.minorPerMajor = f;
+    }
+}
+
+record IdempotencyKey(String value) { public IdempotencyKey { Objects.requireNonNull(value); } }
+
+/**
+ * Fixed-point amount: long minor units (paise, cents) plus currency.
+ * Arithmetic on the payment path works on the raw longs; this record is the boundary type.
+ */
+record Money(long minor, Currency currency) implements Comparable<Money> {
+    static final long PPM = 1_000_000L; // rates are carried as parts-per-million (1% = 10_000)
+
+    public Money { Objects.requireNonNull(currency); }
+
+    static Money of(double major, Currency c){ return new Money(toMinor(major, c), c); }
+    static Money ofMinor(long minor, Currency c){ return new Money(minor, c); }
+    static Money zero(Currency c){ return new Money(0L, c); }
+
+    /** Input boundary only: converts a decimal major amount, rounding half-up to the currency scale. */
+    static long toMinor(double major, Currency c){ return Math.round(major * c.minorPerMajor); }
+    static long ppm(double percent){ return Math.round(percent * 10_000.0); }
+
+    /** {@code minor * ppm / 1e6}, rounded half-up; the single rounding step for fees and promos. */
+    static long percentOf(long minor, long ppm){
+        return Math.floorDiv(Math.multiplyExact(minor, ppm) + PPM / 2, PPM);
+    }
+
+    Money plus(Money o){ sameCurrency(o); return new Money(Math.addExact(minor, o.minor), currency); }
+    Money minus(Money o){ sameCurrency(o); return new Money(Math.subtractExact(minor, o.minor), currency); }
+    Money negate(){ return new Money(-minor, currency); }
+    boolean isPositive(){ return minor > 0; }
+    double toMajor(){ return (double) minor / currency.minorPerMajor; }
+
+    private void sameCurrency(Money o){
+        if(o.currency != currency) throw new IllegalArgumentException("Currency mismatch: " + currency + " vs " + o.currency);
+    }
+    @Override public int compareTo(Money o){ sameCurrency(o); return Long.compare(minor, o.minor); }
+    @Override public String toString(){ return format(minor, currency); }
+
+    static String format(long minor, Currency c){
+        long f = c.minorPerMajor, abs = Math.abs(minor);
+        var sb = new StringBuilder(16);
+        if(minor < 0) sb.append('-');
+        sb.append(c.symbol).append(abs / f);
+        if(c.scale > 0){
+            String frac = Long.toString(abs % f);
+            sb.append('.');
+            for(int i = frac.length(); i < c.scale; i++) sb.append('0');
+            sb.append(frac);
+        }
+        return sb.toString();
+    }
+}
+
+record PaymentResult(String transactionId, Status status, Money chargedAmount, String message) {}
+record RefundResult(String refundId, Status status, Money refundedAmount, String message) {}
+
+record Receipt(String transactionId, String userId, String method, String maskedInfo,
+               Money amount, Money chargedAmount, Money fee, Money discount,
+               Status status, Instant createdAt) {
+    @Override public String toString(){
+        return "["+transactionId+" " + status + " " + chargedAmount +
+               "] " + method + "(" + maskedInfo + ")";
+    }
+}
+
+// ======= Notifier =======
+interface Notifier { void notify(String userId, Receipt receipt); }
+final class EmailNotifier implements Notifier {
+    @Override public void notify(String userId, Receipt r){
+        System.out.println("[Email to "+userId+"] " + r);
+    }
+}
+final class SMSNotifier implements Notifier {
+    @Override public void notify(String userId, Receipt r){
+        System.out.println("[SMS to "+userId+"] " + r);
+    }
+}
+
+// ======= Repository & Transaction Model =======
+final class Transaction {
+    final String id;
+    final String userId;
+    final String methodName;
+    final Currency currency;
+    final long originalAmount;   // pre-discount, minor units
+    long capturedAmount;         // what was actually charged, minor units
+    volatile long totalRefunded; // minor units; only advanced by CAS, never lowered
+    Status status;
+    final String maskedInfo;
+    final Instant createdAt;
+    final IdempotencyKey key; // may be null for non-idempotent ops
+    final long ruleVersion;   // RuleSet the charge was priced with; 0 = rules fixed in code
+
+    Transaction(String id, String userId, String methodName, Currency currency,
+                long originalAmount, long capturedAmount, String maskedInfo,
+                Status status, Instant createdAt, IdempotencyKey key, long ruleVersion){
+        this.id = id; this.userId = userId; this.methodName = methodName; this.currency = currency;
+        this.originalAmount = originalAmount; this.capturedAmount = capturedAmount;
+        this.totalRefunded = 0L; this.status = status; this.maskedInfo = maskedInfo;
+        this.createdAt = createdAt; this.key = key; this.ruleVersion = ruleVersion;
+    }
+    Transaction(String id, String userId, String methodName, Currency currency,
+                long originalAmount, long capturedAmount, String maskedInfo,
+                Status status, Instant createdAt, IdempotencyKey key){
+        this(id, userId, methodName, currency, originalAmount, capturedAmount, maskedInfo, status, createdAt, key, 0L);
+    }
+
+    private static final VarHandle TOTAL_REFUNDED;
+    static {
+        try {
+            TOTAL_REFUNDED = MethodHandles.lookup().findVarHandle(Transaction.class, "totalRefunded", long.class);
+        } catch(ReflectiveOperationException e){ throw new ExceptionInInitializerError(e); }
+    }
+
+    /**
+     * Atomically claims {@code amount} of the remaining refundable capture; returns the refunded total
+     * including this claim, or -1 if it exceeds what remains.
+     * Lock-free: concurrent callers retry the CAS, so the sum of successful claims never exceeds the capture.
+     */
+    long tryReserveRefund(long amount){
+        long cur;
+        do {
+            cur = totalRefunded;
+            if(amount > capturedAmount - cur) return -1;
+        } while(!TOTAL_REFUNDED.compareAndSet(this, cur, cur + amount));
+        return cur + amount;
+    }
+
+    /** Raises the refunded total to at least {@code total}; used when replaying logged totals. */
+    void advanceRefundedTo(long total){
+        long cur;
+        do {
+            cur = totalRefunded;
+            if(total <= cur) return;
+        } while(!TOTAL_REFUNDED.compareAndSet(this, cur, total));
+    }
+}
+
+/** One page of history, newest first; {@code nextCursor} is null once the history is exhausted. */
+record HistoryPage(List<Transaction> items, String nextCursor) {
+    /** Walks {@code history} (oldest first) downward from index {@code from}, taking at most {@code limit}. */
+    static HistoryPage newestFirst(List<Transaction> history, int from, int limit){
+        int to = Math.max(-1, from - limit); // exclusive lower bound
+        var items = new ArrayList<Transaction>(Math.max(0, from - to));
+        for(int i = from; i > to; i--) items.add(history.get(i));
+        String next = to >= 0 && !items.isEmpty() ? items.get(items.size() - 1).id : null;
+        return new HistoryPage(Collections.unmodifiableList(items), next);
+    }
+}
+
+interface TransactionRepository {
+    void save(Transaction tx);
+    Optional<Transaction> findById(String id);
+    Optional<Transaction> findByIdempotency(IdempotencyKey key);
+    List<Transaction> findByUser(String userId);
+
+    /**
+     * Up to {@code limit} transactions older than {@code afterTransactionId} (null starts at the newest).
+     * The default walks {@link #findByUser}; implementations with a positional index should override.
+     */
+    default HistoryPage findByUser(String userId, String afterTransactionId, int limit){
+        if(limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+        var all = findByUser(userId);
+        int from = all.size() - 1;
+        if(afterTransactionId != null){
+            from = -2;
+            for(int i = all.size() - 1; i >= 0; i--) if(all.get(i).id.equals(afterTransactionId)){ from = i - 1; break; }
+            if(from == -2) throw new IllegalArgumentException("Unknown cursor: " + afterTransactionId);
+        }
+        return HistoryPage.newestFirst(all, from, limit);
+    }
+
+    /** Newest-first stream over the user's history; lazily walks a snapshot, never copying it. */
+    default Stream<Transaction> streamByUser(String userId){
+        var all = findByUser(userId);
+        int n = all.size();
+        return IntStream.range(0, n).mapToObj(i -> all.get(n - 1 - i));
+    }
+
+    /** Transactions with {@code from <= createdAt < to}, oldest first, streamed from a time-ordered index. */
+    Stream<Transaction> findByCreatedAt(Instant from, Instant to);
+
+    /**
+     * Atomically claims {@code amount} of {@code tx}'s refundable capture and persists the claim;
+     * returns the refunded total including it, unique to this refund, or -1 if it exceeds what remains.
+     * The default reserves on the live object; stores that hand out copies override it.
+     */
+    default long reserveRefund(Transaction tx, long amount){
+        long total = tx.tryReserveRefund(amount);
+        if(total >= 0) recordRefund(tx, amount);
+        return total;
+    }
+
+    /**
+     * Persists a refund already reserved on {@code tx} via {@link Transaction#tryReserveRefund}.
+     * Stores that hold the live object have nothing further to do.
+     */
+    default void recordRefund(Transaction tx, long amount){}
+}
+
+/**
+ * Append-only list for many concurrent writers and readers.
+ * Elements live in fixed-size chunks, so appends never copy history. A writer claims a slot with one
+ * atomic increment and fills it; the published length is then advanced over the filled prefix by
+ * whichever writer gets there first, so no writer ever waits on another. {@link #snapshot()} is O(1):
+ * it captures the published length and the chunk directory, and later appends are invisible to it.
+ */
+final class ChunkedAppendList<T> {
+    private static final int CHUNK_SHIFT = 10, CHUNK_SIZE = 1 << CHUNK_SHIFT, CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private volatile Object[][] chunks = new Object[4][];
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final ReentrantLock grow = new ReentrantLock(); // a lock, not a monitor, so virtual threads don't pin
+
+    /** Returns the slot index the value was stored at. */
+    int append(T value){
+        Objects.requireNonNull(value);
+        long i = reserved.getAndIncrement();
+        SLOT.setVolatile(chunkFor(i), (int) (i & CHUNK_MASK), value);
+        advance();
+        return (int) i;
+    }
+
+    /** Moves {@code published} across every filled slot; a gap is closed later by the writer that owns it. */
+    private void advance(){
+        long p = published.get();
+        while(true){
+            Object[][] dir = chunks;
+            int c = (int) (p >>> CHUNK_SHIFT);
+            Object[] chunk = c < dir.length ? dir[c] : null;
+            if(chunk == null || SLOT.getVolatile(chunk, (int) (p & CHUNK_MASK)) == null) return;
+            p = published.compareAndSet(p, p + 1) ? p + 1 : published.get();
+        }
+    }
+
+    private Object[] chunkFor(long i){
+        int c = Math.toIntExact(i >>> CHUNK_SHIFT);
+        Object[][] dir = chunks;
+        Object[] chunk = c < dir.length ? dir[c] : null;
+        if(chunk != null) return chunk;
+        grow.lock(); // once per CHUNK_SIZE appends
+        try {
+            dir = chunks;
+            if(c < dir.length && dir[c] != null) return dir[c];
+            // Copy-on-write directory: a published directory is never mutated, so readers need no lock.
+            dir = Arrays.copyOf(dir, c < dir.length ? dir.length : Math.max(dir.length * 2, c + 1));
+            dir[c] = new Object[CHUNK_SIZE];
+            chunks = dir;
+            return dir[c];
+        } finally { grow.unlock(); }
+    }
+
+    int size(){ return (int) published.get(); }
+
+    List<T> snapshot(){
+        int n = (int) published.get(); // read before chunks: every chunk below n is already installed
+        return new Snapshot<>(chunks, n);
+    }
+
+    private static final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[][] dir; private final int size;
+        Snapshot(Object[][] dir, int size){ this.dir = dir; this.size = size; }
+        @SuppressWarnings("unchecked")
+        @Override public T get(int index){
+            Objects.checkIndex(index, size);
+            return (T) dir[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+        }
+        @Override public int size(){ return size; }
+    }
+}
+
+/**
+ * Idempotency keys retained for a fixed window. Each key lives in one map entry plus a generation
+ * queue (a timer wheel with {@code buckets} slots over the retention window). When the clock crosses
+ * a bucket boundary, the queue that has fallen out of the window is drained, so expiry costs O(1)
+ * amortized per key and never scans the map. With {@code maxEntries > 0} the store is also capped:
+ * a hit moves the key to the current generation, and inserts beyond the cap evict from the oldest
+ * generation first, which approximates LRU.
+ */
+final class IdempotencyStore<V> {
+    private static final class Entry<V> {
+        final String key; final V value; final long expiresAt;
+        volatile long generation; // last queue this entry was placed in
+        Entry(String key, V value, long expiresAt, long generation){
+            this.key = key; this.value = value; this.expiresAt = expiresAt; this.generation = generation;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<V>> map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<V>>[] wheel;
+    private final long retentionMillis, bucketMillis;
+    private final int buckets, maxEntries;
+    private final LongSupplier clock;
+    private final ReentrantLock rotation = new ReentrantLock();
+    private volatile long currentGen;
+    private long drainedGen; // every generation <= this has been drained; guarded by rotation
+    private final LongAdder expired = new LongAdder(), evicted = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    IdempotencyStore(Duration retention, int buckets, int maxEntries, LongSupplier clockMillis){
+        if(buckets < 1) throw new IllegalArgumentException("buckets must be >= 1");
+        this.retentionMillis = retention.toMillis();
+        this.bucketMillis = Math.max(1, retentionMillis / buckets);
+        this.buckets = buckets; this.maxEntries = maxEntries; this.clock = clockMillis;
+        this.wheel = new ConcurrentLinkedQueue[buckets + 1];
+        for(int i = 0; i < wheel.length; i++) wheel[i] = new ConcurrentLinkedQueue<>();
+        this.currentGen = clock.getAsLong() / bucketMillis;
+        this.drainedGen = currentGen - buckets - 1;
+    }
+    IdempotencyStore(Duration retention){ this(retention, 24, 0, System::currentTimeMillis); }
+
+    /** The live value for {@code key}, or null if absent or past its retention. */
+    V get(String key){
+        long now = clock.getAsLong();
+        long gen = advance(now);
+        var e = map.get(key);
+        if(e == null || e.expiresAt <= now) return null;
+        if(maxEntries > 0 && e.generation != gen){ e.generation = gen; slot(gen).add(e); }
+        return e.value;
+    }
+
+    /** Stores {@code value}, retained until {@code createdAt} plus the window; already-expired keys are dropped. */
+    void put(String key, V value, Instant createdAt){
+        long now = clock.getAsLong();
+        long gen = advance(now);
+        long expiresAt = createdAt.toEpochMilli() + retentionMillis;
+        if(expiresAt <= now) return;
+        var e = new Entry<>(key, value, expiresAt, gen);
+        map.put(key, e);
+        slot(gen).add(e);
+        if(maxEntries > 0 && map.size() > maxEntries) evictOverCap();
+    }
+
+    int size(){ return map.size(); }
+    long expiredCount(){ return expired.sum(); }
+    long evictedCount(){ return evicted.sum(); }
+
+    private ConcurrentLinkedQueue<Entry<V>> slot(long gen){ return wheel[(int) Math.floorMod(gen, (long) wheel.length)]; }
+
+    /** Drains generations that left the window; returns the current generation. */
+    private long advance(long now){
+        long gen = now / bucketMillis;
+        if(gen <= currentGen) return currentGen;
+        rotation.lock();
+        try {
+            // A slot is reused by generation g + buckets + 1, so drain it before anyone can add to it.
+            for(long g = Math.max(drainedGen + 1, gen - wheel.length - buckets); g <= gen - buckets - 1; g++){
+                drain(slot(g), g, expired);
+                drainedGen = g;
+            }
+            if(gen > currentGen) currentGen = gen;
+            return currentGen;
+        } finally { rotation.unlock(); }
+    }
+
+    /** Removes entries last placed in a generation <= {@code gen}; entries moved to newer queues are skipped. */
+    private void drain(ConcurrentLinkedQueue<Entry<V>> q, long gen, LongAdder counter){
+        Entry<V> e;
+        while((e = q.poll()) != null)
+            if(e.generation <= gen && map.remove(e.key, e)) counter.increment();
+    }
+
+    private void evictOverCap(){
+        rotation.lock();
+        try {
+            for(long g = drainedGen + 1; g <= currentGen && map.size() > maxEntries; g++){
+                var q = slot(g); Entry<V> e;
+                while(map.size() > maxEntries && (e = q.poll()) != null)
+                    if(e.generation <= g && map.remove(e.key, e)) evicted.increment();
+            }
+        } finally { rotation.unlock(); }
+    }
+}
+
+final class InMemoryTransactionRepository implements TransactionRepository {
+    private final Map<String, Transaction> byId = new ConcurrentHashMap<>();
+    private final IdempotencyStore<Transaction> byIdem;
+    private final Map<String, ChunkedAppendList<Transaction>> byUser = new ConcurrentHashMap<>();
+    private final Map<String, Integer> userPosition = new ConcurrentHashMap<>(); // txn id -> slot in byUser list
+    private final ConcurrentSkipListMap<TimeKey, Transaction> byTime = new ConcurrentSkipListMap<>();
+
+    InMemoryTransactionRepository(IdempotencyStore<Transaction> idempotency){ this.byIdem = Objects.requireNonNull(idempotency); }
+    InMemoryTransactionRepository(){ this(new IdempotencyStore<>(Duration.ofHours(24))); }
+
+    /** Orders by creation time, ties broken by id; "" sorts first, so it serves as the low bound of an instant. */
+    private record TimeKey(Instant at, String id) implements Comparable<TimeKey> {
+        @Override public int compareTo(TimeKey o){
+            int c = at.compareTo(o.at);
+            return c != 0 ? c : id.compareTo(o.id);
+        }
+    }
+
+    @Override public void save(Transaction tx){
+        byId.put(tx.id, tx);
+        byTime.put(new TimeKey(tx.createdAt, tx.id), tx);
+        if(tx.key != null) byIdem.put(tx.key.value(), tx, tx.createdAt);
+        int pos = byUser.computeIfAbsent(tx.userId, k -> new ChunkedAppendList<>()).append(tx);
+        userPosition.put(tx.id, pos);
+    }
+    @Override public Optional<Transaction> findById(String id){ return Optional.ofNullable(byId.get(id)); }
+    @Override public Optional<Transaction> findByIdempotency(IdempotencyKey key){
+        return Optional.ofNullable(byIdem.get(key.value()));
+    }
+    /** Consistent point-in-time view; O(1) regardless of history length. */
+    @Override public List<Transaction> findByUser(String userId){
+        var list = byUser.get(userId);
+        return list == null ? List.of() : list.snapshot();
+    }
+    /** O(limit): the cursor is resolved to its slot directly instead of scanning the history. */
+    @Override public HistoryPage findByUser(String userId, String afterTransactionId, int limit){
+        if(limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+        var all = findByUser(userId);
+        if(afterTransactionId == null) return HistoryPage.newestFirst(all, all.size() - 1, limit);
+        var cursorTx = byId.get(afterTransactionId);
+        if(cursorTx == null || !cursorTx.userId.equals(userId))
+            throw new IllegalArgumentException("Unknown cursor: " + afterTransactionId);
+        Integer pos = userPosition.get(afterTransactionId);
+        if(pos == null) return TransactionRepository.super.findByUser(userId, afterTransactionId, limit); // save in flight
+        return HistoryPage.newestFirst(all, pos - 1, limit);
+    }
+    @Override public Stream<Transaction> findByCreatedAt(Instant from, Instant to){
+        if(!from.isBefore(to)) return Stream.empty();
+        return byTime.subMap(new TimeKey(from, ""), true, new TimeKey(to, ""), false).values().stream();
+    }
+}
+
+/**
+ * Concurrent Bloom filter split into time slices. Inserts go to the newest slice; a query ORs every
+ * live slice; when the clock crosses a slice boundary the oldest slice is replaced by an empty one.
+ * With {@code slices - 1} slices spanning the retention window, a key stays covered for at least
+ * the whole window. Bits are set with an atomic OR, so readers and writers never lock.
+ */
+final class RotatingBloomFilter {
+    private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final AtomicReferenceArray<long[]> slices;
+    private final AtomicLongArray inserted;
+    private final int bitsPerSlice, hashes;
+    private final long sliceMillis;
+    private final LongSupplier clock;
+    private final ReentrantLock rotation = new ReentrantLock();
+    private volatile long currentGen;
+
+    /**
+     * @param expectedKeys keys inserted per retention window
+     * @param targetFpp    false-positive rate wanted across all live slices
+     */
+    RotatingBloomFilter(Duration retention, int slices, long expectedKeys, double targetFpp, LongSupplier clockMillis){
+        if(slices < 2) throw new IllegalArgumentException("slices must be >= 2");
+        double perSliceKeys = Math.max(1.0, (double) expectedKeys / (slices - 1));
+        double perSliceFpp = targetFpp / slices; // live slices are OR-ed, so their rates roughly add
+        long bits = (long) Math.ceil(-perSliceKeys * Math.log(perSliceFpp) / (Math.log(2) * Math.log(2)));
+        this.bitsPerSlice = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, (bits + 63) & ~63L));
+        this.hashes = Math.max(1, (int) Math.round((double) bitsPerSlice / perSliceKeys * Math.log(2)));
+        this.sliceMillis = Math.max(1, retention.toMillis() / (slices - 1));
+        this.clock = clockMillis;
+        this.slices = new AtomicReferenceArray<>(slices);
+        for(int i = 0; i < slices; i++) this.slices.set(i, new long[bitsPerSlice >>> 6]);
+        this.inserted = new AtomicLongArray(slices);
+        this.currentGen = clock.getAsLong() / sliceMillis;
+    }
+
+    void add(String key){
+        long gen = advance();
+        int s = (int) Math.floorMod(gen, (long) slices.length());
+        long[] bits = slices.get(s);
+        long h = hash64(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for(int i = 0; i < hashes; i++){
+            int bit = Math.floorMod(h1 + i * h2, bitsPerSlice);
+            BITS.getAndBitwiseOr(bits, bit >>> 6, 1L << bit);
+        }
+        inserted.incrementAndGet(s);
+    }
+
+    /** False means the key was definitely never added within the window. */
+    boolean mightContain(String key){
+        advance();
+        long h = hash64(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for(int s = 0; s < slices.length(); s++){
+            long[] bits = slices.get(s);
+            boolean all = true;
+            for(int i = 0; i < hashes && all; i++){
+                int bit = Math.floorMod(h1 + i * h2, bitsPerSlice);
+                all = ((long) BITS.getVolatile(bits, bit >>> 6) & (1L << bit)) != 0;
+            }
+            if(all) return true;
+        }
+        return false;
+    }
+
+    /** Predicted false-positive rate from the current per-slice insert counts. */
+    double expectedFpp(){
+        double miss = 1.0;
+        for(int s = 0; s < slices.length(); s++){
+            double p = Math.pow(1 - Math.exp(-(double) hashes * inserted.get(s) / bitsPerSlice), hashes);
+            miss *= 1 - p;
+        }
+        return 1 - miss;
+    }
+
+    private long advance(){
+        long gen = clock.getAsLong() / sliceMillis;
+        if(gen <= currentGen) return currentGen;
+        rotation.lock();
+        try {
+            for(long g = Math.max(currentGen + 1, gen - slices.length() + 1); g <= gen; g++){
+                int s = (int) Math.floorMod(g, (long) slices.length());
+                slices.set(s, new long[bitsPerSlice >>> 6]); // swap rather than clear under readers
+                inserted.set(s, 0);
+            }
+            if(gen > currentGen) currentGen = gen;
+            return currentGen;
+        } finally { rotation.unlock(); }
+    }
+
+    // 64-bit FNV-1a over UTF-16 units, then a murmur finalizer to spread low-entropy ids.
+    private static long hash64(String s){
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < s.length(); i++){ h ^= s.charAt(i); h *= 0x100000001b3L; }
+        h ^= h >>> 33; h *= 0xff51afd7ed558ccdL; h ^= h >>> 33; h *= 0xc4ceb9fe1a85ec53L; h ^= h >>> 33;
+        return h;
+    }
+}
+
+/** Counters for the idempotency filter; {@code observedFpp} is false positives over lookups of absent keys. */
+record IdempotencyFilterMetrics(long lookups, long definitelyNew, long falsePositives, double observedFpp, double expectedFpp) {}
+
+/**
+ * Puts a {@link RotatingBloomFilter} in front of another repository's idempotency lookups, so the
+ * common case of a fresh key is answered without touching the backing store. The filter is seeded
+ * from the delegate's recent transactions, which keeps keys recovered from a log visible.
+ */
+final class IdempotencyFilteringRepository implements TransactionRepository {
+    private final TransactionRepository delegate;
+    private final RotatingBloomFilter filter;
+    private final LongAdder lookups = new LongAdder(), definitelyNew = new LongAdder(), falsePositives = new LongAdder();
+
+    IdempotencyFilteringRepository(TransactionRepository delegate, Duration retention, long expectedKeys, double targetFpp,
+                                   LongSupplier clockMillis){
+        this.delegate = Objects.requireNonNull(delegate);
+        this.filter = new RotatingBloomFilter(retention, 4, expectedKeys, targetFpp, clockMillis);
+        var now = Instant.ofEpochMilli(clockMillis.getAsLong());
+        delegate.findByCreatedAt(now.minus(retention), Instant.MAX)
+                .forEach(tx -> { if(tx.key != null) filter.add(tx.key.value()); });
+    }
+    IdempotencyFilteringRepository(TransactionRepository delegate, long expectedKeys){
+        this(delegate, Duration.ofHours(24), expectedKeys, 0.01, System::currentTimeMillis);
+    }
+
+    @Override public void save(Transaction tx){
+        if(tx.key != null) filter.add(tx.key.value()); // before the save is visible, so no lookup can miss it
+        delegate.save(tx);
+    }
+
+    @Override public Optional<Transaction> findByIdempotency(IdempotencyKey key){
+        lookups.increment();
+        if(!filter.mightContain(key.value())){ definitelyNew.increment(); return Optional.empty(); }
+        var found = delegate.findByIdempotency(key);
+        if(found.isEmpty()) falsePositives.increment();
+        return found;
+    }
+
+    IdempotencyFilterMetrics metrics(){
+        long fp = falsePositives.sum(), absent = definitelyNew.sum() + fp;
+        return new IdempotencyFilterMetrics(lookups.sum(), definitelyNew.sum(), fp,
+                absent == 0 ? 0.0 : (double) fp / absent, filter.expectedFpp());
+    }
+
+    @Override public Optional<Transaction> findById(String id){ return delegate.findById(id); }
+    @Override public List<Transaction> findByUser(String userId){ return delegate.findByUser(userId); }
+    @Override public HistoryPage findByUser(String userId, String afterTransactionId, int limit){
+        return delegate.findByUser(userId, afterTransactionId, limit);
+    }
+    @Override public Stream<Transaction> streamByUser(String userId){ return delegate.streamByUser(userId); }
+    @Override public Stream<Transaction> findByCreatedAt(Instant from, Instant to){ return delegate.findByCreatedAt(from, to); }
+    @Override public long reserveRefund(Transaction tx, long amount){ return delegate.reserveRefund(tx, amount); }
+    @Override public void recordRefund(Transaction tx, long amount){ delegate.recordRefund(tx, amount); }
+}
+
+// ======= Durable Repository (write-ahead log) =======
+/**
+ * Binary layout of log records. Each record is framed as {@code [int length][int crc32][payload]};
+ * the payload starts with a type byte. Strings are length-prefixed UTF-8, instants are second + nano.
+ * A REFUND record carries the cumulative refunded total, so replaying it is idempotent.
+ */
+final class TransactionCodec {
+    static final byte SAVE = 1, REFUND = 2;
+    static final byte HAS_RULE_VERSION = 0x01; // SAVE flag: a long rule version trails the record
+    static final int HEADER_BYTES = 8;
+
+    static byte[] encodeSave(Transaction tx){
+        byte[] id = utf8(tx.id), user = utf8(tx.userId), method = utf8(tx.methodName),
+               masked = utf8(tx.maskedInfo), key = tx.key == null ? null : utf8(tx.key.value());
+        int len = 1 + 4*2 + id.length + user.length + method.length + masked.length + 2 + 8*3 + 1 + 12
+                + 1 + (key == null ? 0 : 2 + key.length) + (tx.ruleVersion != 0 ? 8 : 0);
+        var b = ByteBuffer.allocate(len);
+        b.put(SAVE);
+        putStr(b, id); putStr(b, user); putStr(b, method); putStr(b, masked);
+        b.put((byte) tx.currency.ordinal()).put((byte) tx.status.ordinal());
+        b.putLong(tx.originalAmount).putLong(tx.capturedAmount).putLong(tx.totalRefunded);
+        b.put(tx.ruleVersion != 0 ? HAS_RULE_VERSION : 0);
+        b.putLong(tx.createdAt.getEpochSecond()).putInt(tx.createdAt.getNano());
+        b.put((byte) (key == null ? 0 : 1));
+        if(key != null) putStr(b, key);
+        if(tx.ruleVersion != 0) b.putLong(tx.ruleVersion);
+        return b.array();
+    }
+
+    static byte[] encodeRefund(String txId, long refundedTotal){
+        byte[] id = utf8(txId);
+        var b = ByteBuffer.allocate(1 + 2 + id.length + 8).put(REFUND);
+        putStr(b, id);
+        return b.putLong(refundedTotal).array();
+    }
+
+    /** Decodes a SAVE payload positioned just after its type byte. */
+    static Transaction decodeSave(ByteBuffer b){
+        String id = getStr(b), user = getStr(b), method = getStr(b), masked = getStr(b);
+        var currency = Currency.values()[b.get()];
+        var status = Status.values()[b.get()];
+        long original = b.getLong(), captured = b.getLong(), refunded = b.getLong();
+        byte flags = b.get();
+        var createdAt = Instant.ofEpochSecond(b.getLong(), b.getInt());
+        var key = b.get() == 1 ? new IdempotencyKey(getStr(b)) : null;
+        long ruleVersion = (flags & HAS_RULE_VERSION) != 0 ? b.getLong() : 0L;
+        var tx = new Transaction(id, user, method, currency, original, captured, masked, status, createdAt, key, ruleVersion);
+        tx.advanceRefundedTo(refunded);
+        return tx;
+    }
+
+    static String decodeRefundId(ByteBuffer b){ return getStr(b); }
+
+    static int framedSize(byte[] payload){ return HEADER_BYTES + payload.length; }
+
+    /** Writes header + payload into {@code out}. */
+    static void frame(ByteBuffer out, byte[] payload){
+        var crc = new CRC32(); crc.update(payload);
+        out.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    }
+
+    /**
+     * Reads the framed record at the buffer's position, or returns null (position unchanged) when the
+     * remaining bytes are zero fill, a torn tail or corrupt.
+     */
+    static ByteBuffer unframe(ByteBuffer in){
+        if(in.remaining() < HEADER_BYTES) return null;
+        int start = in.position(), len = in.getInt(start), crc = in.getInt(start + 4);
+        if(len <= 0 || len > in.remaining() - HEADER_BYTES) return null;
+        var payload = in.slice(start + HEADER_BYTES, len);
+        var c = new CRC32(); c.update(payload.duplicate());
+        if((int) c.getValue() != crc) return null;
+        in.position(start + HEADER_BYTES + len);
+        return payload;
+    }
+
+    private static byte[] utf8(String s){ return s.getBytes(StandardCharsets.UTF_8); }
+    private static void putStr(ByteBuffer b, byte[] s){
+        if(s.length > 0xFFFF) throw new IllegalArgumentException("Field too long for log record");
+        b.putShort((short) s.length).put(s);
+    }
+    private static String getStr(ByteBuffer b){
+        byte[] s = new byte[Short.toUnsignedInt(b.getShort())]; b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+}
+
+/** When the log is forced to stable storage. */
+enum FsyncPolicy {
+    /** Every save waits for a force; concurrent saves share one force (group commit). */
+    GROUP_COMMIT,
+    /** Saves return once written; a force runs at most once per interval. */
+    INTERVAL,
+    /** Never force; the OS flushes page cache on its own schedule. */
+    NEVER
+}
+
+/**
+ * Where framed log records live. Positions are log sequence numbers (LSNs): logical byte offsets
+ * that only grow, so a snapshot can name the point its replay starts from.
+ * Only the flusher thread appends; replay runs once before the first append.
+ */
+interface LogStorage extends Closeable {
+    /** Feeds every intact payload at or after {@code fromLsn} to {@code sink}; positions appends after the last one. */
+    void replay(long fromLsn, Consumer<ByteBuffer> sink) throws IOException;
+    void append(byte[] payload) throws IOException;
+    /** Makes appended records visible to the file system, and durable if {@code force}; returns the end LSN. */
+    long flush(boolean force) throws IOException;
+    /** The LSN the next append will start at, counting records not yet flushed. */
+    long position();
+    /** Drops every record at or after {@code lsn}, flushed or not, so the next append starts there. */
+    void truncate(long lsn) throws IOException;
+    /** Releases storage wholly below {@code lsn}, which a snapshot now covers. */
+    void discardBefore(long lsn) throws IOException;
+}
+
+/** One growing file written through a {@link FileChannel}; a discarded prefix is kept, since it cannot be cut in place. */
+final class FileChannelLog implements LogStorage {
+    private final FileChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+
+    FileChannelLog(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override public void replay(long fromLsn, Consumer<ByteBuffer> sink) throws IOException {
+        long size = channel.size(), end = Math.min(fromLsn, size);
+        if(size > fromLsn){
+            var map = channel.map(FileChannel.MapMode.READ_ONLY, fromLsn, size - fromLsn);
+            ByteBuffer payload;
+            while((payload = TransactionCodec.unframe(map)) != null) sink.accept(payload);
+            end = fromLsn + map.position();
+        }
+        channel.truncate(end); // drop a torn tail
+        channel.position(end);
+    }
+
+    @Override public void append(byte[] payload) throws IOException {
+        int need = TransactionCodec.framedSize(payload);
+        if(buf.remaining() < need){
+            drain();
+            if(buf.capacity() < need) buf = ByteBuffer.allocateDirect(Integer.highestOneBit(need) << 1);
+        }
+        TransactionCodec.frame(buf, payload);
+    }
+
+    @Override public long flush(boolean force) throws IOException {
+        drain();
+        if(force) channel.force(false);
+        return channel.position();
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        while(buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    @Override public long position(){
+        try { return channel.position() + buf.position(); } catch(IOException e){ throw new UncheckedIOException(e); }
+    }
+
+    @Override public void truncate(long lsn) throws IOException {
+        long written = channel.position();
+        if(lsn >= written){ buf.position((int) (lsn - written)); return; } // only buffered bytes go
+        buf.clear();
+        channel.truncate(lsn);
+        channel.position(lsn);
+    }
+
+    @Override public void discardBefore(long lsn){}
+    @Override public void close() throws IOException { channel.close(); }
+}
+
+/**
+ * Fixed-size memory-mapped segment files named by their base LSN. Appends are plain stores into the
+ * active mapping; a record that does not fit rolls the log into a fresh segment, leaving zero fill
+ * that replay reads as end-of-segment. Whole segments below a snapshot's LSN are deleted.
+ */
+final class MappedSegmentLog implements LogStorage {
+    private static final String PREFIX = "segment-", SUFFIX = ".log";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final TreeMap<Long, Path> segments = new TreeMap<>(); // base LSN -> file
+    private MappedByteBuffer active;
+    private long activeBase;
+    private int forcedUpTo;
+
+    MappedSegmentLog(Path dir, int segmentBytes) throws IOException {
+        if(segmentBytes < 4096) throw new IllegalArgumentException("segmentBytes must be >= 4096");
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        try(var files = Files.list(dir)){
+            files.forEach(f -> {
+                String n = f.getFileName().toString();
+                if(n.startsWith(PREFIX) && n.endsWith(SUFFIX))
+                    segments.put(Long.parseLong(n, PREFIX.length(), n.length() - SUFFIX.length(), 16), f);
+            });
+        }
+    }
+
+    @Override public void replay(long fromLsn, Consumer<ByteBuffer> sink) throws IOException {
+        long endLsn = fromLsn;
+        for(var e : segments.entrySet()){
+            long base = e.getKey();
+            if(base + segmentBytes <= fromLsn) continue;
+            var map = map(e.getValue(), FileChannel.MapMode.READ_ONLY);
+            map.position((int) Math.max(0, fromLsn - base));
+            ByteBuffer payload;
+            while((payload = TransactionCodec.unframe(map)) != null) sink.accept(payload);
+            endLsn = base + map.position();
+        }
+        openActive(endLsn);
+    }
+
+    private void openActive(long lsn) throws IOException {
+        activeBase = lsn - Math.floorMod(lsn, segmentBytes);
+        var file = segments.computeIfAbsent(activeBase, b -> dir.resolve(String.format(Locale.ROOT, "%s%016x%s", PREFIX, b, SUFFIX)));
+        active = map(file, FileChannel.MapMode.READ_WRITE);
+        int pos = (int) (lsn - activeBase);
+        for(int i = pos; i < segmentBytes; i++) if(active.get(i) != 0) active.put(i, (byte) 0); // clear a torn tail
+        active.position(pos);
+        forcedUpTo = pos;
+    }
+
+    private MappedByteBuffer map(Path file, FileChannel.MapMode mode) throws IOException {
+        var options = mode == FileChannel.MapMode.READ_ONLY
+                ? EnumSet.of(StandardOpenOption.READ)
+                : EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try(var ch = FileChannel.open(file, options)){
+            return ch.map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? Math.min(ch.size(), segmentBytes) : segmentBytes);
+        }
+    }
+
+    @Override public void append(byte[] payload) throws IOException {
+        int need = TransactionCodec.framedSize(payload);
+        if(need > segmentBytes) throw new IllegalArgumentException("Record larger than a segment");
+        if(active.remaining() < need){
+            active.force(forcedUpTo, active.position() - forcedUpTo);
+            openActive(activeBase + segmentBytes);
+        }
+        TransactionCodec.frame(active, payload);
+    }
+
+    @Override public long flush(boolean force){
+        int pos = active.position();
+        if(force && pos > forcedUpTo){ active.force(forcedUpTo, pos - forcedUpTo); forcedUpTo = pos; }
+        return activeBase + pos;
+    }
+
+    @Override public long position(){ return activeBase + active.position(); }
+
+    @Override public void truncate(long lsn) throws IOException {
+        if(lsn < activeBase){ // the batch rolled into later segments: drop them and reopen the one holding lsn
+            var later = segments.tailMap(lsn - Math.floorMod(lsn, segmentBytes), false);
+            for(var f : later.values()) Files.deleteIfExists(f);
+            later.clear();
+            openActive(lsn); // zeroes the tail after lsn
+        } else {
+            int pos = (int) (lsn - activeBase);
+            for(int i = pos; i < active.position(); i++) active.put(i, (byte) 0);
+            active.position(pos);
+            forcedUpTo = Math.min(forcedUpTo, pos);
+        }
+        int pos = active.position();
+        active.force(pos, segmentBytes - pos);
+    }
+
+    @Override public void discardBefore(long lsn) throws IOException {
+        var dead = segments.headMap(lsn - Math.floorMod(lsn, segmentBytes), false);
+        for(var f : dead.values()) Files.deleteIfExists(f);
+        dead.clear();
+    }
+
+    int segmentCount(){ return segments.size(); }
+
+    @Override public void close(){ active.force(); }
+}
+
+/**
+ * {@link TransactionRepository} that appends every save and refund to a write-ahead log before
+ * indexing it in memory. A single flusher thread drains queued records in batches, so one
+ * {@code force()} covers every save waiting in that batch; it applies saves to the index once they
+ * are durable. {@link #snapshot()} writes the index, with refunds folded into each record, and lets
+ * the storage discard the log it covers, so recovery loads the snapshot and replays only the tail.
+ */
+final class WalTransactionRepository implements TransactionRepository, AutoCloseable {
+    private static final int MAX_BATCH = 4096;
+    private static final long SNAPSHOT_MAGIC = 0x5458534E41500001L; // "TXSNAP" v1
+
+    /** A queued record; a null payload just asks for the LSN at the next batch boundary. */
+    private record Pending(byte[] payload, Runnable onDurable, CompletableFuture<Long> done) {}
+
+    private final InMemoryTransactionRepository index = new InMemoryTransactionRepository();
+    private final LogStorage storage;
+    private final Path snapshotFile;
+    private final FsyncPolicy policy;
+    private final long intervalNanos;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock storageLock = new ReentrantLock(); // segments are only discarded between batches
+    private final ReentrantLock snapshotting = new ReentrantLock(); // one snapshot writes the temp file at a time
+    private final Thread flusher;
+    private final AtomicLong forces = new AtomicLong(), records = new AtomicLong();
+    private final long replayed;
+    private volatile ScheduledExecutorService snapshotter;
+    private volatile boolean closed;
+    private volatile Exception broken; // a failed batch could not be cut back out of the log
+
+    WalTransactionRepository(LogStorage storage, Path snapshotFile, FsyncPolicy policy, Duration interval){
+        this.storage = Objects.requireNonNull(storage);
+        this.snapshotFile = Objects.requireNonNull(snapshotFile);
+        this.policy = Objects.requireNonNull(policy);
+        this.intervalNanos = interval.toNanos();
+        try {
+            long from = loadSnapshot();
+            var count = new long[1];
+            storage.replay(from, payload -> { apply(payload); count[0]++; });
+            this.replayed = count[0];
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    WalTransactionRepository(Path file, FsyncPolicy policy, Duration interval){
+        this(openFileLog(file), file.resolveSibling(file.getFileName() + ".snapshot"), policy, interval);
+    }
+    WalTransactionRepository(Path file, FsyncPolicy policy){ this(file, policy, Duration.ofMillis(10)); }
+
+    /** Log kept in {@code segmentBytes}-sized memory-mapped segments under {@code dir}. */
+    static WalTransactionRepository segmented(Path dir, int segmentBytes, FsyncPolicy policy){
+        try {
+            return new WalTransactionRepository(new MappedSegmentLog(dir, segmentBytes), dir.resolve("index.snapshot"),
+                    policy, Duration.ofMillis(10));
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+    }
+
+    private static LogStorage openFileLog(Path file){
+        try { return new FileChannelLog(file); } catch(IOException e){ throw new UncheckedIOException(e); }
+    }
+
+    /** Loads the snapshot, if any, into the index; returns the LSN log replay resumes from. */
+    private long loadSnapshot() throws IOException {
+        if(!Files.exists(snapshotFile)) return 0;
+        try(var ch = FileChannel.open(snapshotFile, StandardOpenOption.READ)){
+            var map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if(map.remaining() < 16 || map.getLong() != SNAPSHOT_MAGIC) throw new IOException("Bad snapshot " + snapshotFile);
+            long lsn = map.getLong();
+            ByteBuffer payload;
+            while((payload = TransactionCodec.unframe(map)) != null) apply(payload);
+            if(map.hasRemaining()) throw new IOException("Truncated snapshot " + snapshotFile);
+            return lsn;
+        }
+    }
+
+    /** Idempotent: the log tail may repeat saves and refunds the snapshot already holds. */
+    private void apply(ByteBuffer payload){
+        switch(payload.get()){
+            case TransactionCodec.SAVE -> {
+                var tx = TransactionCodec.decodeSave(payload);
+                var existing = index.findById(tx.id);
+                if(existing.isEmpty()) index.save(tx);
+                else existing.get().advanceRefundedTo(tx.totalRefunded);
+            }
+            case TransactionCodec.REFUND -> {
+                var tx = index.findById(TransactionCodec.decodeRefundId(payload)).orElse(null);
+                long total = payload.getLong();
+                if(tx != null) tx.advanceRefundedTo(total);
+            }
+            default -> throw new IllegalStateException("Unknown log record type");
+        }
+    }
+
+    @Override public void save(Transaction tx){
+        append(TransactionCodec.encodeSave(tx), () -> index.save(tx));
+    }
+    /** Logs the cumulative total, which is at least this reservation and never ahead of memory. */
+    @Override public void recordRefund(Transaction tx, long amount){
+        append(TransactionCodec.encodeRefund(tx.id, tx.totalRefunded), null);
+    }
+
+    private long append(byte[] payload, Runnable onDurable){
+        if(closed) throw new IllegalStateException("Repository closed");
+        var p = new Pending(payload, onDurable, new CompletableFuture<>());
+        queue.add(p);
+        // Closed while we queued: the flusher and close's drain may both be gone, so take it back.
+        if(closed && queue.remove(p)) throw new IllegalStateException("Repository closed");
+        try {
+            return p.done.join();
+        } catch(CompletionException e){
+            if(e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a snapshot of every indexed transaction and discards the log before its start LSN.
+     * The LSN is taken at a batch boundary, when the index already holds everything before it;
+     * saves racing with the scan may land in both snapshot and tail, which replay tolerates.
+     * Concurrent calls take turns, so an older snapshot never replaces a newer one.
+     */
+    long snapshot(){
+        snapshotting.lock();
+        try { return writeSnapshot(); } finally { snapshotting.unlock(); }
+    }
+
+    private long writeSnapshot(){
+        long lsn = append(null, null);
+        var tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            try(var ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+                var buf = ByteBuffer.allocateDirect(1 << 20);
+                buf.putLong(SNAPSHOT_MAGIC).putLong(lsn);
+                for(var it = index.findByCreatedAt(Instant.MIN, Instant.MAX).iterator(); it.hasNext(); ){
+                    byte[] payload = TransactionCodec.encodeSave(it.next());
+                    if(buf.remaining() < TransactionCodec.framedSize(payload)){
+                        buf.flip(); while(buf.hasRemaining()) ch.write(buf); buf.clear();
+                    }
+                    TransactionCodec.frame(buf, payload);
+                }
+                buf.flip(); while(buf.hasRemaining()) ch.write(buf);
+                ch.force(true);
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            storageLock.lock();
+            try { storage.discardBefore(lsn); } finally { storageLock.unlock(); }
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+        return lsn;
+    }
+
+    /** Takes a snapshot every {@code period} on a background thread. */
+    void scheduleSnapshots(Duration period){
+        var exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "wal-snapshot"); t.setDaemon(true); return t;
+        });
+        exec.scheduleWithFixedDelay(this::snapshot, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+        snapshotter = exec;
+    }
+
+    private void flushLoop(){
+        var batch = new ArrayList<Pending>(MAX_BATCH);
+        long lastForce = System.nanoTime(); boolean dirty = false;
+        while(!closed || !queue.isEmpty()){
+            try {
+                var first = queue.poll(policy == FsyncPolicy.INTERVAL ? intervalNanos : 100_000_000L, TimeUnit.NANOSECONDS);
+                if(first != null){ batch.add(first); queue.drainTo(batch, MAX_BATCH - 1); }
+                long lsn;
+                storageLock.lock();
+                try {
+                    if(broken != null) throw new IllegalStateException("Log unusable after a failed batch", broken);
+                    long start = storage.position();
+                    try {
+                        for(var p : batch) if(p.payload != null) storage.append(p.payload);
+                        dirty |= !batch.isEmpty();
+                        boolean force = switch(policy){
+                            case GROUP_COMMIT -> dirty;
+                            case INTERVAL -> dirty && System.nanoTime() - lastForce >= intervalNanos;
+                            case NEVER -> false;
+                        };
+                        lsn = storage.flush(force);
+                        if(force){ forces.incrementAndGet(); lastForce = System.nanoTime(); dirty = false; }
+                    } catch(IOException | RuntimeException e){
+                        rollBack(start, e);
+                        throw e;
+                    }
+                } finally {
+                    storageLock.unlock();
+                }
+                for(var p : batch){
+                    if(p.payload != null) records.incrementAndGet();
+                    if(p.onDurable != null) p.onDurable.run();
+                }
+                for(var p : batch) p.done.complete(lsn);
+            } catch(IOException | RuntimeException e){
+                var failure = e instanceof IOException io ? new UncheckedIOException(io) : e;
+                for(var p : batch) p.done.completeExceptionally(failure);
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Cuts a failed batch out of the log, so no caller told its save failed finds it again on
+     * replay. If even that fails, the log is closed to further appends rather than left holding
+     * records whose callers were told otherwise.
+     */
+    private void rollBack(long start, Exception cause){
+        try { storage.truncate(start); }
+        catch(IOException | RuntimeException e){
+            cause.addSuppressed(e);
+            broken = cause;
+        }
+    }
+
+    long forceCount(){ return forces.get(); }
+    long recordCount(){ return records.get(); }
+    /** Log records replayed at open, after the snapshot; the cold-start cost snapshots bound. */
+    long replayedCount(){ return replayed; }
+
+    @Override public void close(){
+        closed = true;
+        var exec = snapshotter;
+        if(exec != null) exec.shutdownNow();
+        try {
+            flusher.join();
+            Pending p; // an appender that saw closed after queueing: whichever of us dequeues it fails it
+            while((p = queue.poll()) != null) p.done.completeExceptionally(new IllegalStateException("Repository closed"));
+            storage.flush(policy != FsyncPolicy.NEVER);
+            storage.close();
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+        catch(InterruptedException e){ Thread.currentThread().interrupt(); }
+    }
+
+    @Override public Optional<Transaction> findById(String id){ return index.findById(id); }
+    @Override public Optional<Transaction> findByIdempotency(IdempotencyKey key){ return index.findByIdempotency(key); }
+    @Override public List<Transaction> findByUser(String userId){ return index.findByUser(userId); }
+    @Override public HistoryPage findByUser(String userId, String afterTransactionId, int limit){
+        return index.findByUser(userId, afterTransactionId, limit);
+    }
+    @Override public Stream<Transaction> findByCreatedAt(Instant from, Instant to){ return index.findByCreatedAt(from, to); }
+}
+
+// ======= Off-heap Repository =======
+/**
+ * {@link TransactionRepository} that keeps transactions outside the Java heap as fixed-width records
+ * in direct buffers. Method names and user ids are dictionary-encoded and indexes are primitive
+ * open-addressing tables, so the collector sees a few large arrays rather than millions of small
+ * objects. Interface reads materialize short-lived {@link Transaction} copies; {@link #forEachByUser}
+ * walks records through a single reusable {@link View} without allocating.
+ * Writers serialize on a write lock; refund reservations CAS the off-heap field directly.
+ */
+final class OffHeapTransactionRepository implements TransactionRepository {
+    // Record layout (native byte order, 8-byte aligned)
+    private static final int ORIGINAL = 0, CAPTURED = 8, REFUNDED = 16, CREATED_SEC = 24, CREATED_NANO = 32,
+            USER = 36, PREV_FOR_USER = 40, ID_HASH = 44, KEY_HASH = 48, METHOD = 52, CURRENCY = 53, STATUS = 54,
+            ID_LEN = 56, MASKED_LEN = 57, KEY_LEN = 58, ID = 64, MASKED = 88, KEY = 112, RULE_VERSION = 152, RECORD_BYTES = 160;
+    private static final int ID_MAX = 24, MASKED_MAX = 24, KEY_MAX = 40, NO_KEY = 0xFF;
+    private static final int RECORDS_PER_CHUNK = 1 << 16;
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer[] chunks = new ByteBuffer[8];
+    private int size;
+    private int[] idTable = new int[1 << 10], keyTable = new int[1 << 10]; // record + 1, 0 = empty
+    private final Map<String, Integer> userCodes = new HashMap<>();
+    private final List<String> userNames = new ArrayList<>();
+    private int[] userHead = new int[64];
+    private final List<String> methodNames = new ArrayList<>();
+    private boolean timeOrdered = true; // records appended in non-decreasing createdAt
+
+    @Override public void save(Transaction tx){
+        byte[] id = fixed(tx.id, ID_MAX, "id"), masked = fixed(tx.maskedInfo, MASKED_MAX, "maskedInfo");
+        byte[] key = tx.key == null ? null : fixed(tx.key.value(), KEY_MAX, "idempotency key");
+        lock.writeLock().lock();
+        try {
+            if(lookup(idTable, tx.id, ID_HASH, ID_LEN, ID) >= 0) throw new IllegalArgumentException("Duplicate transaction id " + tx.id);
+            int rec = size;
+            if((rec & (RECORDS_PER_CHUNK - 1)) == 0) addChunk(rec / RECORDS_PER_CHUNK);
+            var b = chunk(rec); int o = offset(rec);
+            int user = userCodes.computeIfAbsent(tx.userId, this::newUser);
+            if(rec > 0 && timeOrdered && tx.createdAt.isBefore(createdAt(rec - 1))) timeOrdered = false;
+
+            b.putLong(o + ORIGINAL, tx.originalAmount).putLong(o + CAPTURED, tx.capturedAmount)
+             .putLong(o + REFUNDED, tx.totalRefunded)
+             .putLong(o + CREATED_SEC, tx.createdAt.getEpochSecond()).putInt(o + CREATED_NANO, tx.createdAt.getNano())
+             .putInt(o + USER, user).putInt(o + PREV_FOR_USER, userHead[user])
+             .putInt(o + ID_HASH, tx.id.hashCode()).putInt(o + KEY_HASH, key == null ? 0 : tx.key.value().hashCode())
+             .put(o + METHOD, methodCode(tx.methodName)).put(o + CURRENCY, (byte) tx.currency.ordinal())
+             .put(o + STATUS, (byte) tx.status.ordinal())
+             .put(o + ID_LEN, (byte) id.length).put(o + MASKED_LEN, (byte) masked.length)
+             .put(o + KEY_LEN, (byte) (key == null ? NO_KEY : key.length))
+             .putLong(o + RULE_VERSION, tx.ruleVersion);
+            b.put(o + ID, id).put(o + MASKED, masked);
+            if(key != null) b.put(o + KEY, key);
+
+            userHead[user] = rec;
+            size = rec + 1;
+            idTable = insert(idTable, tx.id.hashCode(), rec, ID_HASH);
+            if(key != null){ // the latest save answers its key, as in the heap repository
+                int slot = slotOf(keyTable, tx.key.value(), KEY_HASH, KEY_LEN, KEY);
+                if(slot >= 0) keyTable[slot] = rec + 1;
+                else keyTable = insert(keyTable, tx.key.value().hashCode(), rec, KEY_HASH);
+            }
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    private int newUser(String userId){
+        int code = userNames.size();
+        userNames.add(userId);
+        if(code == userHead.length) userHead = Arrays.copyOf(userHead, code * 2);
+        userHead[code] = -1;
+        return code;
+    }
+
+    private void addChunk(int c){
+        if(c >= chunks.length) chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        chunks[c] = ByteBuffer.allocateDirect(RECORDS_PER_CHUNK * RECORD_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    private byte methodCode(String method){
+        int i = methodNames.indexOf(method);
+        if(i < 0){
+            if(methodNames.size() == 255) throw new IllegalStateException("Too many payment methods");
+            methodNames.add(method); i = methodNames.size() - 1;
+        }
+        return (byte) i;
+    }
+
+    private static byte[] fixed(String s, int max, String field){
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if(b.length > max) throw new IllegalArgumentException(field + " longer than " + max + " bytes");
+        return b;
+    }
+
+    // Open addressing with linear probing; the stored hash lets resize skip re-reading strings.
+    private int[] insert(int[] table, int hash, int rec, int hashField){
+        if((size << 1) > table.length){
+            var grown = new int[table.length << 1];
+            for(int slot : table) if(slot != 0) place(grown, chunk(slot - 1).getInt(offset(slot - 1) + hashField), slot);
+            table = grown;
+        }
+        place(table, hash, rec + 1);
+        return table;
+    }
+    private static void place(int[] table, int hash, int slotValue){
+        int mask = table.length - 1, i = mix(hash) & mask;
+        while(table[i] != 0) i = (i + 1) & mask;
+        table[i] = slotValue;
+    }
+    /** Murmur3's finalizer: String hashes of sequential ids differ only in low bits, which linear probing turns into long runs. */
+    private static int mix(int h){
+        h ^= h >>> 16; h *= 0x85ebca6b;
+        h ^= h >>> 13; h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private int lookup(int[] table, String value, int hashField, int lenField, int bytesField){
+        int slot = slotOf(table, value, hashField, lenField, bytesField);
+        return slot < 0 ? -1 : table[slot] - 1;
+    }
+    /** The table index whose record holds {@code value}, or -1. */
+    private int slotOf(int[] table, String value, int hashField, int lenField, int bytesField){
+        int hash = value.hashCode(), mask = table.length - 1, i = mix(hash) & mask;
+        for(int slot; (slot = table[i]) != 0; i = (i + 1) & mask){
+            int rec = slot - 1; var b = chunk(rec); int o = offset(rec);
+            if(b.getInt(o + hashField) == hash && equalsAt(b, o + bytesField, Byte.toUnsignedInt(b.get(o + lenField)), value)) return i;
+        }
+        return -1;
+    }
+    private static boolean equalsAt(ByteBuffer b, int at, int len, String value){
+        if(len == NO_KEY) return false;
+        if(len == value.length()){ // ASCII fast path, no allocation
+            for(int i = 0; i < len; i++) if(b.get(at + i) != value.charAt(i)) return asciiMismatch(b, at, len, value);
+            return true;
+        }
+        return asciiMismatch(b, at, len, value);
+    }
+    private static boolean asciiMismatch(ByteBuffer b, int at, int len, String value){
+        for(int i = 0; i < value.length(); i++) if(value.charAt(i) >= 0x80) return readString(b, at, len).equals(value);
+        return false;
+    }
+
+    private ByteBuffer chunk(int rec){ return chunks[rec / RECORDS_PER_CHUNK]; }
+    private static int offset(int rec){ return (rec % RECORDS_PER_CHUNK) * RECORD_BYTES; }
+    private static String readString(ByteBuffer b, int at, int len){
+        byte[] s = new byte[len]; b.get(at, s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+    private Instant createdAt(int rec){
+        var b = chunk(rec); int o = offset(rec);
+        return Instant.ofEpochSecond(b.getLong(o + CREATED_SEC), b.getInt(o + CREATED_NANO));
+    }
+
+    /** Heap copy of a record; refunds must go through {@link #reserveRefund} to reach the record. */
+    private Transaction materialize(int rec){
+        var b = chunk(rec); int o = offset(rec);
+        int keyLen = Byte.toUnsignedInt(b.get(o + KEY_LEN));
+        var tx = new Transaction(readString(b, o + ID, b.get(o + ID_LEN)), userNames.get(b.getInt(o + USER)),
+                methodNames.get(b.get(o + METHOD)), Currency.values()[b.get(o + CURRENCY)],
+                b.getLong(o + ORIGINAL), b.getLong(o + CAPTURED), readString(b, o + MASKED, b.get(o + MASKED_LEN)),
+                Status.values()[b.get(o + STATUS)], createdAt(rec),
+                keyLen == NO_KEY ? null : new IdempotencyKey(readString(b, o + KEY, keyLen)), b.getLong(o + RULE_VERSION));
+        tx.advanceRefundedTo((long) LONG_VIEW.getVolatile(b, o + REFUNDED));
+        return tx;
+    }
+
+    private <R> R read(java.util.function.Supplier<R> body){
+        lock.readLock().lock();
+        try { return body.get(); } finally { lock.readLock().unlock(); }
+    }
+
+    @Override public Optional<Transaction> findById(String id){
+        return read(() -> { int rec = lookup(idTable, id, ID_HASH, ID_LEN, ID); return rec < 0 ? Optional.empty() : Optional.of(materialize(rec)); });
+    }
+    @Override public Optional<Transaction> findByIdempotency(IdempotencyKey key){
+        return read(() -> { int rec = lookup(keyTable, key.value(), KEY_HASH, KEY_LEN, KEY); return rec < 0 ? Optional.empty() : Optional.of(materialize(rec)); });
+    }
+
+    /** Record indexes for a user, newest first, walking the per-user chain from {@code start}. */
+    private int[] chain(int start, int limit){
+        var out = new int[Math.min(limit, 64)]; int n = 0;
+        for(int rec = start; rec >= 0 && n < limit; rec = chunk(rec).getInt(offset(rec) + PREV_FOR_USER)){
+            if(n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = rec;
+        }
+        return Arrays.copyOf(out, n);
+    }
+    private int head(String userId){
+        Integer user = userCodes.get(userId);
+        return user == null ? -1 : userHead[user];
+    }
+
+    @Override public List<Transaction> findByUser(String userId){
+        return read(() -> {
+            int[] recs = chain(head(userId), Integer.MAX_VALUE);
+            var out = new ArrayList<Transaction>(recs.length);
+            for(int i = recs.length - 1; i >= 0; i--) out.add(materialize(recs[i]));
+            return Collections.unmodifiableList(out);
+        });
+    }
+    @Override public HistoryPage findByUser(String userId, String afterTransactionId, int limit){
+        if(limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+        return read(() -> {
+            int start = head(userId);
+            if(afterTransactionId != null){
+                int cursor = lookup(idTable, afterTransactionId, ID_HASH, ID_LEN, ID);
+                Integer user = userCodes.get(userId);
+                if(cursor < 0 || user == null || chunk(cursor).getInt(offset(cursor) + USER) != user)
+                    throw new IllegalArgumentException("Unknown cursor: " + afterTransactionId);
+                start = chunk(cursor).getInt(offset(cursor) + PREV_FOR_USER);
+            }
+            int[] recs = chain(start, limit + 1); // one extra tells whether a next page exists
+            var items = new ArrayList<Transaction>(limit);
+            for(int i = 0; i < Math.min(limit, recs.length); i++) items.add(materialize(recs[i]));
+            String next = recs.length > limit ? items.get(limit - 1).id : null;
+            return new HistoryPage(Collections.unmodifiableList(items), next);
+        });
+    }
+    /**
+     * While records arrive in time order the range is found by binary search and streamed a page at
+     * a time, holding the read lock only per page; otherwise the whole store is scanned and sorted.
+     */
+    @Override public Stream<Transaction> findByCreatedAt(Instant from, Instant to){
+        if(!from.isBefore(to)) return Stream.empty();
+        int[] range = read(() -> timeOrdered ? new int[]{ firstAtOrAfter(from), firstAtOrAfter(to) } : null);
+        if(range == null) return read(() -> {
+            var out = new ArrayList<Transaction>();
+            for(int rec = 0; rec < size; rec++){
+                var at = createdAt(rec);
+                if(!at.isBefore(from) && at.isBefore(to)) out.add(materialize(rec));
+            }
+            out.sort(Comparator.comparing((Transaction t) -> t.createdAt).thenComparing(t -> t.id));
+            return out.stream();
+        });
+        final int page = 1024;
+        return IntStream.iterate(range[0], p -> p < range[1], p -> p + page).boxed()
+                .flatMap(p -> read(() -> {
+                    var out = new ArrayList<Transaction>(page);
+                    for(int rec = p; rec < Math.min(p + page, range[1]); rec++) out.add(materialize(rec));
+                    return out.stream();
+                }));
+    }
+    private int firstAtOrAfter(Instant t){
+        int lo = 0, hi = size;
+        while(lo < hi){ int mid = (lo + hi) >>> 1; if(createdAt(mid).isBefore(t)) lo = mid + 1; else hi = mid; }
+        return lo;
+    }
+
+    /** CAS on the off-heap refunded total; the caller's copy is brought up to date on success. */
+    @Override public long reserveRefund(Transaction tx, long amount){
+        return read(() -> {
+            int rec = lookup(idTable, tx.id, ID_HASH, ID_LEN, ID);
+            if(rec < 0) return -1L;
+            var b = chunk(rec); int o = offset(rec) + REFUNDED;
+            long captured = b.getLong(offset(rec) + CAPTURED), cur;
+            do {
+                cur = (long) LONG_VIEW.getVolatile(b, o);
+                if(amount > captured - cur) return -1L;
+            } while(!LONG_VIEW.compareAndSet(b, o, cur, cur + amount));
+            tx.advanceRefundedTo(cur + amount);
+            return cur + amount;
+        });
+    }
+
+    /** Flyweight over one record; only valid inside the {@link #forEachByUser} visitor that received it. */
+    final class View {
+        private ByteBuffer b; private int o;
+        View moveTo(int rec){ b = chunk(rec); o = offset(rec); return this; }
+        long capturedAmount(){ return b.getLong(o + CAPTURED); }
+        long totalRefunded(){ return (long) LONG_VIEW.getVolatile(b, o + REFUNDED); }
+        Status status(){ return Status.values()[b.get(o + STATUS)]; }
+        Currency currency(){ return Currency.values()[b.get(o + CURRENCY)]; }
+        String methodName(){ return methodNames.get(b.get(o + METHOD)); }
+        long createdAtEpochSecond(){ return b.getLong(o + CREATED_SEC); }
+        String id(){ return readString(b, o + ID, b.get(o + ID_LEN)); }
+    }
+
+    /** Visits a user's records newest first through one reused view; nothing is copied to the heap. */
+    void forEachByUser(String userId, Consumer<View> visitor){
+        lock.readLock().lock();
+        try {
+            var view = new View();
+            for(int rec = head(userId); rec >= 0; rec = chunk(rec).getInt(offset(rec) + PREV_FOR_USER))
+                visitor.accept(view.moveTo(rec));
+        } finally { lock.readLock().unlock(); }
+    }
+
+    int size(){ return read(() -> size); }
+    /** Bytes held off-heap by record chunks. */
+    long offHeapBytes(){ return read(() -> (long) ((size + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK) * RECORDS_PER_CHUNK * RECORD_BYTES); }
+}
+
+// ======= Fee & Promo Strategies =======
+// All amounts are minor units in the payment's currency.
+interface FeeStrategy { long apply(long amountAfterDiscount, Payment payment); }
+
+/** Fee for amounts at or above {@code fromAmount}: flat + ppm of the amount, clamped to [min, max]. */
+record FeeTier(long fromAmount, long flat, long ppm, long min, long max) {
+    public FeeTier {
+        if(fromAmount < 0 || flat < 0 || ppm < 0 || min < 0 || max < min) throw new IllegalArgumentException("Invalid fee tier");
+    }
+    static FeeTier percent(double percent){ return new FeeTier(0, 0, Money.ppm(percent), 0, Long.MAX_VALUE); }
+}
+
+/**
+ * Immutable tiered fee table held as parallel primitive arrays; {@link #fee} does a binary search
+ * and integer arithmetic only, so evaluating it never allocates.
+ */
+final class FeeSchedule {
+    static final FeeSchedule NONE = new FeeSchedule();
+
+    private final long[] from, flat, ppm, min, max;
+
+    FeeSchedule(FeeTier... tiers){
+        var sorted = tiers.clone();
+        Arrays.sort(sorted, Comparator.comparingLong(FeeTier::fromAmount));
+        int n = sorted.length;
+        from = new long[n]; flat = new long[n]; ppm = new long[n]; min = new long[n]; max = new long[n];
+        for(int i = 0; i < n; i++){
+            var t = sorted[i];
+            if(i > 0 && from[i-1] == t.fromAmount()) throw new IllegalArgumentException("Duplicate tier at " + t.fromAmount());
+            from[i] = t.fromAmount(); flat[i] = t.flat(); ppm[i] = t.ppm(); min[i] = t.min(); max[i] = t.max();
+        }
+    }
+    static FeeSchedule percent(double percent){ return new FeeSchedule(FeeTier.percent(percent)); }
+
+    long fee(long amount){
+        int lo = 0, hi = from.length - 1, t = -1;
+        while(lo <= hi){ // last tier with from <= amount
+            int mid = (lo + hi) >>> 1;
+            if(from[mid] <= amount){ t = mid; lo = mid + 1; } else hi = mid - 1;
+        }
+        if(t < 0) return 0L;
+        long f = flat[t] + Money.percentOf(amount, ppm[t]);
+        return Math.min(max[t], Math.max(min[t], f));
+    }
+}
+
+/**
+ * Fee schedules per payment class. The schedule is resolved once per class through a
+ * {@link ClassValue}, so the charge path does one identity lookup and then primitive math.
+ */
+final class RegistryFeeStrategy implements FeeStrategy {
+    private final Map<Class<? extends Payment>, FeeSchedule> fees = new ConcurrentHashMap<>();
+    private final ClassValue<FeeSchedule> resolved = new ClassValue<>() {
+        @Override protected FeeSchedule computeValue(Class<?> type){ return fees.getOrDefault(type, FeeSchedule.NONE); }
+    };
+    public <T extends Payment> void register(Class<T> clazz, double percent){
+        register(clazz, FeeSchedule.percent(percent));
+    }
+    public <T extends Payment> void register(Class<T> clazz, FeeSchedule schedule){
+        fees.put(clazz, Objects.requireNonNull(schedule));
+        resolved.remove(clazz);
+    }
+    @Override public long apply(long base, Payment p){
+        return resolved.get(p.getClass()).fee(base);
+    }
+}
+
+/**
+ * Card fees by network and card type, from a {@link BinTable}. The most specific schedule wins:
+ * network and type, then network alone; cards with neither, and other methods, use {@code fallback}.
+ */
+final class BinFeeStrategy implements FeeStrategy {
+    private static final int TYPES = CardType.values().length;
+    private final BinTable bins;
+    private final FeeStrategy fallback;
+    // [network][type], with one extra type column for "any type"; null means not registered.
+    private final FeeSchedule[] schedules = new FeeSchedule[CardNetwork.values().length * (TYPES + 1)];
+
+    BinFeeStrategy(BinTable bins, FeeStrategy fallback){
+        this.bins = Objects.requireNonNull(bins); this.fallback = Objects.requireNonNull(fallback);
+    }
+
+    BinFeeStrategy register(CardNetwork network, FeeSchedule schedule){
+        schedules[network.ordinal() * (TYPES + 1) + TYPES] = Objects.requireNonNull(schedule);
+        return this;
+    }
+    BinFeeStrategy register(CardNetwork network, CardType type, FeeSchedule schedule){
+        schedules[network.ordinal() * (TYPES + 1) + type.ordinal()] = Objects.requireNonNull(schedule);
+        return this;
+    }
+
+    @Override public long apply(long base, Payment p){
+        if(p instanceof CreditCardPayment card){
+            var info = bins.lookup(card.bin8());
+            int row = info.network().ordinal() * (TYPES + 1);
+            var s = schedules[row + info.type().ordinal()];
+            if(s == null) s = schedules[row + TYPES];
+            if(s != null) return s.fee(base);
+        }
+        return fallback.apply(base, p);
+    }
+}
+
+/** A promo that prices against the whole payment; plain promos only see the amount. */
+interface Promo {
+    long apply(long amount);
+    default long apply(long amount, Payment payment){ return apply(amount); }
+    /** Called once the charge for {@code payment} has either committed or failed. */
+    default void complete(Payment payment, boolean charged){}
+}
+final class NoPromo implements Promo { public long apply(long amount){ return amount; } }
+/** Only discounts payments in the currency the amount off is denominated in. */
+final class FlatPromo implements Promo {
+    private final long flat; // minor units
+    private final Currency currency;
+    public FlatPromo(Money flat){ this.flat = flat.minor(); this.currency = flat.currency(); }
+    public long apply(long amount){ return Math.max(0L, amount - flat); }
+    @Override public long apply(long amount, Payment payment){ return payment.currency == currency ? apply(amount) : amount; }
+}
+final class PercentagePromo implements Promo {
+    private final long ppm; public PercentagePromo(double pct){ this.ppm = Money.ppm(pct); }
+    public long apply(long amount){ return amount - Money.percentOf(amount, ppm); }
+}
+
+/**
+ * One step of a {@link PromoChain}: a flat and/or percentage discount, optionally capped, limited to
+ * some methods, currencies or users, and to a number of uses per user. Built from {@link #percent}
+ * or {@link #flat} and narrowed with the {@code with}-style methods.
+ */
+record PromoRule(String id, long flatOff, long ppmOff, long maxDiscount, Set<String> methods, Set<Currency> currencies,
+                 long minAmount, int perUserLimit, boolean stackable, Predicate<String> users) {
+    private static final Predicate<String> ALL_USERS = u -> true;
+
+    PromoRule {
+        Objects.requireNonNull(id); Objects.requireNonNull(methods); Objects.requireNonNull(currencies); Objects.requireNonNull(users);
+        if(flatOff < 0 || ppmOff < 0 || maxDiscount < 0 || perUserLimit < 0) throw new IllegalArgumentException("Negative promo term in " + id);
+    }
+    static PromoRule percent(String id, double pct){
+        return new PromoRule(id, 0, Money.ppm(pct), Long.MAX_VALUE, Set.of(), Set.of(), 0, 0, true, ALL_USERS);
+    }
+    /** A flat discount only applies to payments in the currency it is denominated in. */
+    static PromoRule flat(String id, Money off){
+        return new PromoRule(id, off.minor(), 0, Long.MAX_VALUE, Set.of(), Set.of(off.currency()), 0, 0, true, ALL_USERS);
+    }
+    PromoRule onlyFor(String... methodNames){
+        return new PromoRule(id, flatOff, ppmOff, maxDiscount, Set.of(methodNames), currencies, minAmount, perUserLimit, stackable, users);
+    }
+    PromoRule minAmount(Money min){
+        return new PromoRule(id, flatOff, ppmOff, maxDiscount, methods, currencies, min.minor(), perUserLimit, stackable, users);
+    }
+    PromoRule cappedAt(Money max){
+        return new PromoRule(id, flatOff, ppmOff, max.minor(), methods, currencies, minAmount, perUserLimit, stackable, users);
+    }
+    PromoRule perUser(int uses){
+        return new PromoRule(id, flatOff, ppmOff, maxDiscount, methods, currencies, minAmount, uses, stackable, users);
+    }
+    /** Once this rule applies, later rules in the chain are skipped. */
+    PromoRule exclusive(){
+        return new PromoRule(id, flatOff, ppmOff, maxDiscount, methods, currencies, minAmount, perUserLimit, false, users);
+    }
+    /** Restricts the rule to a user segment; the answer is cached per user by the chain. */
+    PromoRule forUsers(Predicate<String> segment){
+        return new PromoRule(id, flatOff, ppmOff, maxDiscount, methods, currencies, minAmount, perUserLimit, stackable, segment);
+    }
+
+    /** The cheap checks that need no lookup; the user segment is asked separately. */
+    boolean matches(Payment p, long amount){
+        return amount >= minAmount && (methods.isEmpty() || methods.contains(p.methodName()))
+                && (currencies.isEmpty() || currencies.contains(p.currency));
+    }
+    /** True if pricing needs nothing but the amount: no method, currency, user or per-user terms. */
+    boolean amountOnly(){
+        return methods.isEmpty() && currencies.isEmpty() && perUserLimit == 0 && users == ALL_USERS;
+    }
+    long discountOn(long amount){ return Math.min(maxDiscount, flatOff + Money.percentOf(amount, ppmOff)); }
+}
+
+/**
+ * Applies {@link PromoRule}s in the order they were added, each to the amount left by the ones before,
+ * with an optional cap on the total discount.
+ *
+ * <p>Segment answers are held per rule and user in a bounded {@link IdempotencyStore}, so a campaign
+ * burst asks each user's segment once per TTL. A per-user use is reserved when the rule prices a payment
+ * and handed back in {@link #complete} if the charge fails, so failed attempts don't burn the allowance
+ * and concurrent payments can't overshoot it.
+ */
+final class PromoChain implements Promo {
+    private volatile PromoRule[] rules = new PromoRule[0];
+    private volatile long maxTotal = Long.MAX_VALUE;
+    private final IdempotencyStore<Boolean> eligible;
+    private final LongSupplier clock;
+    private final ConcurrentMap<String, AtomicInteger> uses = new ConcurrentHashMap<>();     // rule:user -> uses
+    private final ConcurrentMap<String, Long> reserved = new ConcurrentHashMap<>();         // txn id -> rule bitmask
+    private final LongAdder segmentChecks = new LongAdder();
+
+    PromoChain(Duration eligibilityTtl, int maxCachedEntries, LongSupplier clockMillis){
+        this.eligible = new IdempotencyStore<>(eligibilityTtl, 8, maxCachedEntries, clockMillis);
+        this.clock = clockMillis;
+    }
+    PromoChain(){ this(Duration.ofMinutes(5), 100_000, System::currentTimeMillis); }
+
+    PromoChain add(PromoRule rule){
+        var next = Arrays.copyOf(rules, rules.length + 1);
+        if(next.length > Long.SIZE) throw new IllegalStateException("At most " + Long.SIZE + " rules per chain");
+        next[next.length - 1] = rule;
+        rules = next;
+        return this;
+    }
+
+    PromoChain capTotal(Money max){ maxTotal = max.minor(); return this; }
+
+    int uses(String ruleId, String userId){
+        var n = uses.get(ruleId + ':' + userId);
+        return n == null ? 0 : n.get();
+    }
+    long segmentChecks(){ return segmentChecks.sum(); }
+    int cachedEligibility(){ return eligible.size(); }
+
+    /** Without a payment, only the {@linkplain PromoRule#amountOnly amount-only} rules can price. */
+    @Override public long apply(long amount){
+        var rs = rules;
+        long left = amount, total = 0, limit = maxTotal;
+        for(int i = 0; i < rs.length && total < limit && left > 0; i++){
+            var r = rs[i];
+            if(!r.amountOnly() || amount < r.minAmount()) continue;
+            long d = Math.min(Math.min(r.discountOn(left), limit - total), left);
+            left -= d; total += d;
+            if(!r.stackable()) break;
+        }
+        return left;
+    }
+
+    @Override public long apply(long amount, Payment p){
+        var rs = rules;
+        long left = amount, total = 0, limit = maxTotal, mask = 0;
+        for(int i = 0; i < rs.length && total < limit && left > 0; i++){
+            var r = rs[i];
+            if(!r.matches(p, amount)) continue;
+            String key = r.id() + ':' + p.userId;
+            if(!inSegment(r, key, p.userId)) continue;
+            if(r.perUserLimit() > 0){
+                if(!reserve(key, r.perUserLimit())) continue;
+                mask |= 1L << i;
+            }
+            long d = Math.min(Math.min(r.discountOn(left), limit - total), left);
+            left -= d; total += d;
+            if(!r.stackable()) break;
+        }
+        if(mask != 0) reserved.merge(p.transactionId, mask, (a, b) -> a | b);
+        return left;
+    }
+
+    @Override public void complete(Payment p, boolean charged){
+        Long mask = reserved.remove(p.transactionId);
+        if(mask == null || charged) return;
+        var rs = rules;
+        for(int i = 0; i < rs.length; i++)
+            if((mask & (1L << i)) != 0) uses.get(rs[i].id() + ':' + p.userId).decrementAndGet();
+    }
+
+    private boolean inSegment(PromoRule r, String key, String userId){
+        Boolean hit = eligible.get(key);
+        if(hit != null) return hit;
+        segmentChecks.increment();
+        boolean ok = r.users().test(userId);
+        eligible.put(key, ok, Instant.ofEpochMilli(clock.getAsLong()));
+        return ok;
+    }
+
+    private boolean reserve(String key, int limit){
+        var n = uses.computeIfAbsent(key, k -> new AtomicInteger());
+        for(int cur = n.get(); cur < limit; cur = n.get())
+            if(n.compareAndSet(cur, cur + 1)) return true;
+        return false;
+    }
+}
+
+// ======= Rule Engine (hot-reloadable fees & promos) =======
+/** One immutable, numbered set of pricing rules; a payment holds on to the set it started with. */
+record RuleSet(long version, FeeStrategy fees, Promo promo) {}
+
+/**
+ * Publishes {@link RuleSet}s copy-on-write: a reload compiles a complete new set off to the side and
+ * swaps it in with one atomic store, so readers never lock and never see a half-built set.
+ *
+ * <p>Rule files are line-oriented {@code key = value} text; blank lines and {@code #} comments are
+ * ignored. Amounts are major units with two decimals, rates are percents:
+ * <pre>
+ * fee.card   = 0:3.00:2.0:5.00: ; 1000.00:0:1.5:0:50.00   # from:flat:percent:min:max, empty max = uncapped
+ * fee.upi    = 0.5                                       # plain percent
+ * promo      = percent:10                                # or flat:50.00:INR, or none
+ * </pre>
+ */
+final class RuleEngine {
+    private static final Map<String, Class<? extends Payment>> METHODS = Map.of(
+            "card", CreditCardPayment.class, "upi", UPIPayment.class, "wallet", WalletPayment.class);
+
+    private final AtomicReference<RuleSet> current;
+    private final Path file;
+    private volatile ScheduledExecutorService watcher;
+    private final LongAdder reloadFailures = new LongAdder();
+    private volatile Consumer<RuntimeException> onReloadFailure = e -> {};
+
+    private RuleEngine(Path file, RuleSet initial){ this.file = file; this.current = new AtomicReference<>(initial); }
+
+    /** Rules fixed in code, published as version 0; {@link #publish} can still replace them. */
+    static RuleEngine fixed(FeeStrategy fees, Promo promo){ return new RuleEngine(null, new RuleSet(0, fees, promo)); }
+
+    /** Rules loaded from {@code file}, published as version 1. */
+    static RuleEngine fromFile(Path file){
+        var engine = new RuleEngine(file, null);
+        engine.reload();
+        return engine;
+    }
+
+    RuleSet current(){ return current.get(); }
+
+    /** Installs rules built in code as the next version. */
+    RuleSet publish(FeeStrategy fees, Promo promo){
+        return current.updateAndGet(old -> new RuleSet(old == null ? 1 : old.version() + 1, fees, promo));
+    }
+
+    /** Re-reads the rule file. A file that fails to parse leaves the current version in place. */
+    RuleSet reload(){
+        if(file == null) throw new IllegalStateException("Rules were not loaded from a file");
+        final List<String> lines;
+        try { lines = Files.readAllLines(file, StandardCharsets.UTF_8); }
+        catch(IOException e){ throw new UncheckedIOException(e); }
+        var fees = new RegistryFeeStrategy();
+        Promo promo = new NoPromo();
+        for(int n = 0; n < lines.size(); n++){
+            String line = lines.get(n);
+            int hash = line.indexOf('#');
+            if(hash >= 0) line = line.substring(0, hash);
+            if(line.isBlank()) continue;
+            int eq = line.indexOf('=');
+            if(eq < 0) throw new IllegalArgumentException(file + ":" + (n + 1) + ": expected key = value");
+            String key = line.substring(0, eq).trim().toLowerCase(Locale.ROOT), value = line.substring(eq + 1).trim();
+            try {
+                if(key.startsWith("fee.")) registerFee(fees, key.substring(4), value);
+                else if(key.equals("promo")) promo = parsePromo(value);
+                else throw new IllegalArgumentException("unknown key " + key);
+            } catch(RuntimeException e){
+                throw new IllegalArgumentException(file + ":" + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return publish(fees, promo);
+    }
+
+    /** Called on the watcher thread with each background reload that fails; the live rules stay in place. */
+    RuleEngine onReloadFailure(Consumer<RuntimeException> listener){
+        onReloadFailure = Objects.requireNonNull(listener);
+        return this;
+    }
+
+    /** Background reloads that failed and left the previous version live. */
+    long reloadFailures(){ return reloadFailures.sum(); }
+
+    /** Polls the rule file and reloads it when its modification time changes. */
+    void startWatching(Duration period){
+        var exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "rule-watcher"); t.setDaemon(true); return t;
+        });
+        var lastSeen = new AtomicReference<>(modified());
+        exec.scheduleWithFixedDelay(() -> {
+            var m = modified();
+            if(m != null && !m.equals(lastSeen.getAndSet(m))){
+                try { reload(); }
+                catch(RuntimeException e){ reloadFailures.increment(); onReloadFailure.accept(e); }
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+        watcher = exec;
+    }
+
+    void stopWatching(){
+        var exec = watcher;
+        if(exec != null) exec.shutdownNow();
+    }
+
+    private java.nio.file.attribute.FileTime modified(){
+        try { return Files.getLastModifiedTime(file); } catch(IOException e){ return null; }
+    }
+
+    private static void registerFee(RegistryFeeStrategy fees, String method, String spec){
+        var clazz = METHODS.get(method);
+        if(clazz == null) throw new IllegalArgumentException("unknown payment method " + method);
+        if(!spec.contains(":")){ fees.register(clazz, Double.parseDouble(spec)); return; }
+        var tiers = new ArrayList<FeeTier>();
+        for(String t : spec.split(";")){
+            String[] f = t.trim().split(":", -1);
+            if(f.length != 5) throw new IllegalArgumentException("fee tier needs from:flat:percent:min:max");
+            tiers.add(new FeeTier(minor(f[0]), minor(f[1]), Money.ppm(Double.parseDouble(f[2].trim())), minor(f[3]),
+                    f[4].isBlank() ? Long.MAX_VALUE : minor(f[4])));
+        }
+        fees.register(clazz, new FeeSchedule(tiers.toArray(FeeTier[]::new)));
+    }
+
+    private static Promo parsePromo(String spec){
+        String[] f = spec.split(":", 2);
+        return switch(f[0].trim().toLowerCase(Locale.ROOT)){
+            case "none" -> new NoPromo();
+            case "percent" -> new PercentagePromo(Double.parseDouble(f[1].trim()));
+            case "flat" -> {
+                String[] a = f.length < 2 ? new String[0] : f[1].split(":");
+                if(a.length != 2) throw new IllegalArgumentException("flat promo needs amount:currency, e.g. flat:50.00:INR");
+                yield new FlatPromo(Money.ofMinor(minor(a[0]), Currency.valueOf(a[1].trim().toUpperCase(Locale.ROOT))));
+            }
+            default -> throw new IllegalArgumentException("unknown promo " + spec);
+        };
+    }
+
+    private static long minor(String major){
+        return new java.math.BigDecimal(major.isBlank() ? "0" : major.trim()).movePointRight(2).longValueExact();
+    }
+}
+
+// ======= Input Validation =======
+/**
+ * Hand-rolled checks for payment instruments. Each is one pass over the chars with no regex and no
+ * allocation; only an accepted card number that contained whitespace is copied.
+ */
+final class PaymentValidation {
+    static final int CARD_MIN_DIGITS = 12, CARD_MAX_DIGITS = 19, WALLET_MAX_LENGTH = 64;
+
+    private PaymentValidation(){}
+
+    /**
+     * The card number with whitespace removed, or null unless it has 12-19 digits, nothing but digits
+     * and whitespace, and a valid Luhn check digit.
+     */
+    static String cardDigits(String number){
+        if(number == null) return null;
+        // Luhn doubles every second digit counting from the right; keep both parities until the count is known.
+        int n = 0, evenDoubled = 0, oddDoubled = 0;
+        for(int i = 0, len = number.length(); i < len; i++){
+            char c = number.charAt(i);
+            if(c >= '0' && c <= '9'){
+                int d = c - '0', dd = d < 5 ? d * 2 : d * 2 - 9;
+                if((n & 1) == 0){ evenDoubled += dd; oddDoubled += d; } else { evenDoubled += d; oddDoubled += dd; }
+                if(++n > CARD_MAX_DIGITS) return null;
+            } else if(!isSpace(c)) return null;
+        }
+        if(n < CARD_MIN_DIGITS) return null;
+        if(((n & 1) == 0 ? evenDoubled : oddDoubled) % 10 != 0) return null;
+        return n == number.length() ? number : stripSpaces(number, n);
+    }
+
+    /** {@code name@handle}: name from {@code [A-Za-z0-9._-]}, handle from ASCII letters, both non-empty. */
+    static boolean upiId(String id){
+        if(id == null) return false;
+        int len = id.length(), i = 0;
+        for(; i < len; i++){
+            char c = id.charAt(i);
+            if(c == '@') break;
+            if(!isAsciiLetterOrDigit(c) && c != '.' && c != '-' && c != '_') return false;
+        }
+        if(i == 0 || i >= len - 1) return false;
+        for(i++; i < len; i++) if(!isAsciiLetter(id.charAt(i))) return false;
+        return true;
+    }
+
+    /** 1-64 chars from {@code [A-Za-z0-9._-]}. */
+    static boolean walletId(String id){
+        if(id == null || id.isEmpty() || id.length() > WALLET_MAX_LENGTH) return false;
+        for(int i = 0; i < id.length(); i++){
+            char c = id.charAt(i);
+            if(!isAsciiLetterOrDigit(c) && c != '.' && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    /** Only ASCII digits, {@code min} to {@code max} of them. */
+    static boolean digits(String s, int min, int max){
+        if(s == null || s.length() < min || s.length() > max) return false;
+        for(int i = 0; i < s.length(); i++) if(s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        return true;
+    }
+
+    // Same set as the regex class \s, which the old replaceAll stripped.
+    private static boolean isSpace(char c){ return c == ' ' || (c >= '\t' && c <= '\r'); }
+    private static boolean isAsciiLetter(char c){ return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'); }
+    private static boolean isAsciiLetterOrDigit(char c){ return isAsciiLetter(c) || (c >= '0' && c <= '9'); }
+
+    private static String stripSpaces(String s, int digits){
+        var out = new char[digits];
+        for(int i = 0, j = 0; j < digits; i++) if(!isSpace(s.charAt(i))) out[j++] = s.charAt(i);
+        return new String(out);
+    }
+}
+
+/**
+ * Luhn checks for a batch of card numbers, for bulk imports and payouts. Numbers of up to 24 ASCII
+ * digits are packed right-aligned into 24-byte rows, so every row has the same doubling pattern, and
+ * checked eight digits per {@code long} (SWAR lanes). Anything else takes the scalar
+ * {@link CreditCardPayment#luhnValid}, so every entry gets exactly the answer that method gives.
+ */
+final class LuhnBatch {
+    static final int ROW = 24;
+    private static final VarHandle WORD = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long DOUBLED = 0x00FF00FF00FF00FFL; // even bytes are an odd distance from the last digit
+    private static final long ONES = 0x0101010101010101L;
+
+    private LuhnBatch(){}
+
+    static boolean[] validate(String... numbers){
+        var out = new boolean[numbers.length];
+        var rows = new byte[numbers.length * ROW];
+        var packed = new boolean[numbers.length];
+        for(int i = 0; i < numbers.length; i++) packed[i] = pack(numbers[i], rows, i * ROW);
+        for(int i = 0; i < numbers.length; i++)
+            out[i] = packed[i] ? rowValid(rows, i * ROW) : CreditCardPayment.luhnValid(numbers[i]);
+        return out;
+    }
+
+    /** The one-at-a-time reference path. */
+    static boolean[] validateScalar(String... numbers){
+        var out = new boolean[numbers.length];
+        for(int i = 0; i < numbers.length; i++) out[i] = CreditCardPayment.luhnValid(numbers[i]);
+        return out;
+    }
+
+    /** Writes digit values right-aligned into the zeroed row; false if {@code n} is not 0-24 digits. */
+    private static boolean pack(String n, byte[] rows, int at){
+        int len = n.length();
+        if(len > ROW) return false;
+        for(int i = 0, base = at + ROW - len; i < len; i++){
+            int d = n.charAt(i) - '0';
+            if(d < 0 || d > 9) return false;
+            rows[base + i] = (byte) d;
+        }
+        return true;
+    }
+
+    private static boolean rowValid(byte[] rows, int at){
+        long sum = lanes((long) WORD.get(rows, at)) + lanes((long) WORD.get(rows, at + 8)) + lanes((long) WORD.get(rows, at + 16));
+        return sum % 10 == 0;
+    }
+
+    /** Luhn contribution of eight digit lanes: double the marked ones, fold 10-18 down by 9, add up. */
+    private static long lanes(long w){
+        long twice = (w & DOUBLED) << 1;                        // 0..18 per byte, no carries
+        long over = ((twice + 0x7676767676767676L) & 0x8080808080808080L) >>> 7; // 1 where lane >= 10
+        long folded = twice - over * 9 + (w & ~DOUBLED);        // every lane 0..9
+        return (folded * ONES) >>> 56;                          // horizontal byte sum, at most 72
+    }
+}
+
+// ======= Card BIN Lookup =======
+enum CardNetwork { VISA, MASTERCARD, RUPAY, AMEX, DISCOVER, DINERS, JCB, MAESTRO, UNKNOWN }
+enum CardType { CREDIT, DEBIT, PREPAID, UNKNOWN }
+
+/** What the leading digits of a card say about it; instances are shared, so lookups allocate nothing. */
+record BinInfo(CardNetwork network, String issuer, CardType type) {
+    static final BinInfo UNKNOWN = new BinInfo(CardNetwork.UNKNOWN, "", CardType.UNKNOWN);
+}
+
+/**
+ * Immutable BIN/IIN range table over 8-digit card prefixes. Ranges may nest; at load time they are
+ * flattened into sorted, disjoint {@code int} intervals where the narrowest range wins, so a lookup
+ * is one binary search over a primitive array.
+ *
+ * <p>The CSV has one range per line, {@code from,to,network,issuer,type}; prefixes may be any length
+ * up to 8 digits ({@code from} is padded with 0s, {@code to} with 9s). Blank lines, {@code #} comments
+ * and a {@code from,...} header are skipped:
+ * <pre>
+ * 4,4,VISA,,CREDIT
+ * 45145700,45145799,VISA,HDFC Bank,DEBIT
+ * 2221,2720,MASTERCARD,,CREDIT
+ * </pre>
+ */
+final class BinTable {
+    static final int DIGITS = 8;
+    static final BinTable EMPTY = new BinTable(new int[0], new int[0], new BinInfo[0]);
+
+    private final int[] lows, highs;
+    private final BinInfo[] infos;
+
+    private BinTable(int[] lows, int[] highs, BinInfo[] infos){ this.lows = lows; this.highs = highs; this.infos = infos; }
+
+    static BinTable load(Path csv){
+        final List<String> lines;
+        try { lines = Files.readAllLines(csv, StandardCharsets.UTF_8); }
+        catch(IOException e){ throw new UncheckedIOException(e); }
+        var ranges = new ArrayList<Range>();
+        var shared = new HashMap<BinInfo, BinInfo>();
+        for(int n = 0; n < lines.size(); n++){
+            String line = lines.get(n);
+            int hash = line.indexOf('#');
+            if(hash >= 0) line = line.substring(0, hash);
+            if(line.isBlank() || (n == 0 && line.trim().toLowerCase(Locale.ROOT).startsWith("from"))) continue;
+            String[] f = line.split(",", -1);
+            try {
+                if(f.length != 5) throw new IllegalArgumentException("expected from,to,network,issuer,type");
+                var info = new BinInfo(CardNetwork.valueOf(f[2].trim().toUpperCase(Locale.ROOT)), f[3].trim(),
+                        f[4].isBlank() ? CardType.UNKNOWN : CardType.valueOf(f[4].trim().toUpperCase(Locale.ROOT)));
+                int lo = pad(f[0], '0'), hi = pad(f[1], '9');
+                if(lo > hi) throw new IllegalArgumentException("range ends before it starts");
+                ranges.add(new Range(lo, hi, shared.computeIfAbsent(info, i -> i)));
+            } catch(RuntimeException e){
+                throw new IllegalArgumentException(csv + ":" + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return of(ranges);
+    }
+
+    private record Range(int lo, int hi, BinInfo info) { long width(){ return (long) hi - lo; } }
+
+    /** Sweeps the range boundaries, keeping the narrowest open range for each elementary interval. */
+    private static BinTable of(List<Range> ranges){
+        var byStart = new ArrayList<>(ranges);
+        byStart.sort(Comparator.comparingInt(Range::lo));
+        var points = new TreeSet<Long>();
+        for(var r : ranges){ points.add((long) r.lo()); points.add(r.hi() + 1L); }
+        var open = new PriorityQueue<Range>(Comparator.comparingLong(Range::width));
+        var lo = new int[points.size()]; var hi = new int[points.size()]; var info = new BinInfo[points.size()];
+        int size = 0, next = 0;
+        Long prev = null;
+        for(long p : points){
+            if(prev != null){
+                long start = prev;
+                while(!open.isEmpty() && open.peek().hi() < start) open.poll(); // closed before this interval
+                var top = open.peek();
+                if(top != null){
+                    if(size > 0 && info[size - 1] == top.info() && hi[size - 1] + 1L == start) hi[size - 1] = (int) (p - 1);
+                    else { lo[size] = (int) start; hi[size] = (int) (p - 1); info[size++] = top.info(); }
+                }
+            }
+            while(next < byStart.size() && byStart.get(next).lo() == p) open.add(byStart.get(next++));
+            prev = p;
+        }
+        return new BinTable(Arrays.copyOf(lo, size), Arrays.copyOf(hi, size), Arrays.copyOf(info, size));
+    }
+
+    private static int pad(String prefix, char fill){
+        String p = prefix.trim();
+        if(!PaymentValidation.digits(p, 1, DIGITS))
+            throw new IllegalArgumentException("prefix must be 1-" + DIGITS + " digits: " + prefix);
+        int v = Integer.parseInt(p);
+        for(int i = p.length(); i < DIGITS; i++) v = v * 10 + (fill - '0');
+        return v;
+    }
+
+    /** The range holding this 8-digit prefix, or {@link BinInfo#UNKNOWN}. */
+    BinInfo lookup(int bin8){
+        int i = Arrays.binarySearch(lows, bin8);
+        if(i < 0) i = -i - 2; // last interval starting at or before bin8
+        return i >= 0 && bin8 <= highs[i] ? infos[i] : BinInfo.UNKNOWN;
+    }
+
+    /** Looks up the first eight digits of a card number; shorter or non-digit input is unknown. */
+    BinInfo lookup(CharSequence cardDigits){
+        if(cardDigits.length() < DIGITS) return BinInfo.UNKNOWN;
+        int v = 0;
+        for(int i = 0; i < DIGITS; i++){
+            int d = cardDigits.charAt(i) - '0';
+            if(d < 0 || d > 9) return BinInfo.UNKNOWN;
+            v = v * 10 + d;
+        }
+        return lookup(v);
+    }
+
+    int intervals(){ return lows.length; }
+}
+
+// ======= Wallet Ledger =======
+/** One change to a wallet, in minor units; {@code balanceAfter} is the balance that change produced. */
+record WalletEntry(Kind kind, long amount, long balanceAfter, String reference, Instant at) {
+    enum Kind { CREDIT, DEBIT, HOLD, CAPTURE, RELEASE, EXPIRE }
+}
+
+/**
+ * Wallet balances in minor units. Each wallet is one {@code long} updated by CAS, so a debit checks
+ * the funds and takes them in a single atomic step and concurrent debits can never overdraw. Every
+ * applied change is appended to the wallet's entry log; entries from concurrent writers appear in
+ * append order, each carrying the balance its own update left.
+ *
+ * <p>A hold takes funds out of the balance the same way a debit does, but can later be captured (in
+ * full or part, the rest returned) or released. Holds that reach their expiry are released by a timer
+ * wheel swept with {@link #expireDue()}, or on a daemon thread after {@link #startExpiry}; capture
+ * also checks the deadline, so a late sweep never lets an expired hold be captured.
+ */
+final class WalletLedger {
+    private static final VarHandle BALANCE;
+    static {
+        try { BALANCE = MethodHandles.lookup().findVarHandle(Account.class, "balance", long.class); }
+        catch(ReflectiveOperationException e){ throw new ExceptionInInitializerError(e); }
+    }
+
+    private static final int WHEEL_SLOTS = 512;
+
+    private static final class Account {
+        volatile long balance;
+        final AtomicLong held = new AtomicLong();
+        final ChunkedAppendList<WalletEntry> entries = new ChunkedAppendList<>();
+    }
+
+    private static final class Hold {
+        static final int HELD = 0, CAPTURED = 1, RELEASED = 2;
+        final String id; final Account account; final long amount, expiresAt; final Runnable onExpire;
+        final AtomicInteger state = new AtomicInteger(HELD);
+        Hold(String id, Account account, long amount, long expiresAt, Runnable onExpire){
+            this.id = id; this.account = account; this.amount = amount; this.expiresAt = expiresAt; this.onExpire = onExpire;
+        }
+    }
+
+    private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Hold> holds = new ConcurrentHashMap<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ConcurrentLinkedQueue<Hold>[] wheel = new ConcurrentLinkedQueue[WHEEL_SLOTS];
+    private final long tickMillis;
+    private final LongSupplier clock;
+    private final ReentrantLock sweep = new ReentrantLock();
+    private volatile long sweptTick; // every slot up to this tick has been swept; written under sweep
+    private volatile ScheduledExecutorService expiry;
+
+    WalletLedger(LongSupplier clockMillis, Duration tick){
+        this.clock = clockMillis;
+        this.tickMillis = Math.max(1, tick.toMillis());
+        for(int i = 0; i < WHEEL_SLOTS; i++) wheel[i] = new ConcurrentLinkedQueue<>();
+        this.sweptTick = clock.getAsLong() / tickMillis - 1;
+    }
+    WalletLedger(){ this(System::currentTimeMillis, Duration.ofSeconds(1)); }
+
+    /** Adds funds and returns the new balance. */
+    long credit(String walletId, long amount, String reference){
+        if(amount <= 0) throw new IllegalArgumentException("Credit must be > 0");
+        var a = account(walletId);
+        long after = (long) BALANCE.getAndAdd(a, amount) + amount;
+        log(a, WalletEntry.Kind.CREDIT, amount, after, reference);
+        return after;
+    }
+
+    /** Takes {@code amount} only if the wallet holds at least that much; false leaves it untouched. */
+    boolean debit(String walletId, long amount, String reference){
+        if(amount <= 0) throw new IllegalArgumentException("Debit must be > 0");
+        var a = accounts.get(walletId);
+        long after = a == null ? -1 : take(a, amount);
+        if(after < 0) return false;
+        log(a, WalletEntry.Kind.DEBIT, amount, after, reference);
+        return true;
+    }
+
+    /**
+     * Reserves {@code amount} under {@code holdId} until {@code ttl} passes; false if the funds are short.
+     * {@code onExpire} runs once if the hold expires rather than being captured or released.
+     */
+    boolean hold(String walletId, String holdId, long amount, Duration ttl, Runnable onExpire){
+        if(amount <= 0) throw new IllegalArgumentException("Hold must be > 0");
+        var a = accounts.get(walletId);
+        long after = a == null ? -1 : take(a, amount);
+        if(after < 0) return false;
+        var h = new Hold(holdId, a, amount, clock.getAsLong() + ttl.toMillis(), onExpire);
+        if(holds.putIfAbsent(holdId, h) != null){
+            BALANCE.getAndAdd(a, amount);
+            throw new IllegalStateException("Hold " + holdId + " already exists");
+        }
+        a.held.addAndGet(amount);
+        log(a, WalletEntry.Kind.HOLD, amount, after, holdId);
+        // A sweep racing past this slot leaves the hold for the next revolution; capture still honours the deadline.
+        wheel[(int) Math.floorMod(Math.max(h.expiresAt / tickMillis, sweptTick + 1), (long) WHEEL_SLOTS)].add(h);
+        return true;
+    }
+
+    /** Takes {@code amount} of the hold and returns the rest; false if the hold is gone, expired or too small. */
+    boolean capture(String holdId, long amount){
+        var h = holds.get(holdId);
+        if(h == null || amount <= 0 || amount > h.amount) return false;
+        if(clock.getAsLong() >= h.expiresAt){ expire(h); return false; }
+        if(!h.state.compareAndSet(Hold.HELD, Hold.CAPTURED)) return false;
+        holds.remove(holdId, h);
+        var a = h.account;
+        a.held.addAndGet(-h.amount);
+        long rest = h.amount - amount;
+        long after = rest == 0 ? a.balance : (long) BALANCE.getAndAdd(a, rest) + rest;
+        log(a, WalletEntry.Kind.CAPTURE, amount, after, holdId);
+        if(rest > 0) log(a, WalletEntry.Kind.RELEASE, rest, after, holdId);
+        return true;
+    }
+
+    /** Returns a hold's funds to the wallet; false if it was already captured, released or expired. */
+    boolean release(String holdId){
+        var h = holds.get(holdId);
+        return h != null && free(h, WalletEntry.Kind.RELEASE);
+    }
+
+    /** Releases every hold past its deadline and returns how many were released. */
+    int expireDue(){
+        long now = clock.getAsLong(), tick = now / tickMillis;
+        if(tick <= sweptTick) return 0;
+        int expired = 0;
+        sweep.lock();
+        try {
+            for(long t = Math.max(sweptTick + 1, tick - WHEEL_SLOTS + 1); t <= tick; t++){
+                var slot = wheel[(int) Math.floorMod(t, (long) WHEEL_SLOTS)];
+                var later = new ArrayList<Hold>();
+                for(Hold h; (h = slot.poll()) != null; ){
+                    if(h.state.get() != Hold.HELD) continue;
+                    if(h.expiresAt <= now){ if(expire(h)) expired++; }
+                    else later.add(h); // due on a later revolution
+                }
+                slot.addAll(later);
+            }
+            sweptTick = tick;
+        } finally { sweep.unlock(); }
+        return expired;
+    }
+
+    /** Sweeps expired holds every {@code period} on a daemon thread. */
+    void startExpiry(Duration period){
+        var exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "wallet-hold-expiry"); t.setDaemon(true); return t;
+        });
+        exec.scheduleWithFixedDelay(this::expireDue, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+        expiry = exec;
+    }
+
+    void stopExpiry(){
+        var exec = expiry;
+        if(exec != null) exec.shutdownNow();
+    }
+
+    /** Spendable funds; held amounts are excluded until released. */
+    long balance(String walletId){
+        var a = accounts.get(walletId);
+        return a == null ? 0 : a.balance;
+    }
+
+    long held(String walletId){
+        var a = accounts.get(walletId);
+        return a == null ? 0 : a.held.get();
+    }
+
+    /** The wallet's entries so far, oldest first; a stable view that later entries don't change. */
+    List<WalletEntry> entries(String walletId){
+        var a = accounts.get(walletId);
+        return a == null ? List.of() : a.entries.snapshot();
+    }
+
+    private Account account(String walletId){ return accounts.computeIfAbsent(walletId, k -> new Account()); }
+
+    /** Debit-if-sufficient on one balance; the balance it left, or -1 if the funds were short. */
+    private static long take(Account a, long amount){
+        long cur = a.balance;
+        while(true){
+            if(cur < amount) return -1;
+            long seen = (long) BALANCE.compareAndExchange(a, cur, cur - amount);
+            if(seen == cur) return cur - amount;
+            cur = seen;
+        }
+    }
+
+    private boolean expire(Hold h){
+        if(!free(h, WalletEntry.Kind.EXPIRE)) return false;
+        if(h.onExpire != null) h.onExpire.run();
+        return true;
+    }
+
+    private boolean free(Hold h, WalletEntry.Kind kind){
+        if(!h.state.compareAndSet(Hold.HELD, Hold.RELEASED)) return false;
+        holds.remove(h.id, h);
+        var a = h.account;
+        a.held.addAndGet(-h.amount);
+        long after = (long) BALANCE.getAndAdd(a, h.amount) + h.amount;
+        log(a, kind, h.amount, after, h.id);
+        return true;
+    }
+
+    private void log(Account a, WalletEntry.Kind kind, long amount, long after, String reference){
+        a.entries.append(new WalletEntry(kind, amount, after, reference, Instant.ofEpochMilli(clock.getAsLong())));
+    }
+}
+
+// ======= Double-entry Ledger =======
+/** One leg of a journal entry in minor units: positive debits {@code account}, negative credits it. */
+record Posting(String account, long amount) {
+    Posting { Objects.requireNonNull(account); }
+}
+
+/** A balanced set of postings in one currency; {@code sequence} is its position in the journal. */
+record JournalEntry(long sequence, String reference, Currency currency, List<Posting> postings, Instant at) {
+    JournalEntry {
+        postings = List.copyOf(postings);
+        long sum = 0;
+        for(var p : postings) sum = Math.addExact(sum, p.amount());
+        if(postings.size() < 2 || sum != 0) throw new IllegalArgumentException("Unbalanced entry " + reference + ": " + postings);
+    }
+}
+
+/**
+ * Double-entry book of everything the gateway moves. Entries are appended to the journal in batches:
+ * posting threads queue their entry, and whichever holds the commit lock takes every queued entry,
+ * writes them to the optional {@link LogStorage} with one flush, then applies them. Account balances
+ * are kept per currency as each batch commits, so reading one is a map lookup.
+ *
+ * <p>A payment posts Dr {@code clearing:<method>} (what the customer paid) and Dr
+ * {@link #PROMOTIONS} (the discount) against Cr {@link #MERCHANT_PAYABLE} (the list price) and Cr
+ * {@link #FEE_REVENUE}. A refund posts Dr merchant payable, Cr clearing.
+ */
+final class DoubleEntryLedger implements Closeable {
+    static final String MERCHANT_PAYABLE = "merchant:payable", FEE_REVENUE = "revenue:fees", PROMOTIONS = "expense:promotions";
+    private static final int CURRENCIES = Currency.values().length;
+
+    private static final class Pending {
+        final String reference; final Currency currency; final List<Posting> postings; final Instant at;
+        JournalEntry entry; RuntimeException error; // set by the committing thread under the commit lock
+        Pending(String reference, Currency currency, List<Posting> postings, Instant at){
+            this.reference = reference; this.currency = currency; this.postings = postings; this.at = at;
+        }
+    }
+
+    private final LogStorage log; // null keeps the journal in memory only
+    private final boolean force;
+    private final ConcurrentLinkedQueue<Pending> queued = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock commit = new ReentrantLock();
+    private final ChunkedAppendList<JournalEntry> journal = new ChunkedAppendList<>();
+    private final ConcurrentMap<String, AtomicLongArray> balances = new ConcurrentHashMap<>(); // account -> by currency
+    private long nextSequence; // guarded by commit
+    private IOException broken; // guarded by commit: a failed batch could not be cut back out of the log
+    private final LongAdder batches = new LongAdder();
+
+    DoubleEntryLedger(){ this.log = null; this.force = false; }
+
+    /** A ledger journaled to {@code log}, rebuilt from it first; {@code force} fsyncs each batch. */
+    DoubleEntryLedger(LogStorage log, boolean force){
+        this.log = log; this.force = force;
+        try {
+            log.replay(0, buf -> {
+                var e = decode(buf);
+                if(e.sequence() != nextSequence)
+                    throw new UncheckedIOException(new IOException("Journal entry " + e.sequence() + " where " + nextSequence + " was expected"));
+                apply(e);
+            });
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+    }
+
+    /** Commits a balanced entry and returns it once it is in the journal (and on disk, if journaled). */
+    JournalEntry post(String reference, Currency currency, Posting... postings){
+        var legs = new ArrayList<Posting>(postings.length);
+        for(var p : postings) if(p.amount() != 0) legs.add(p);
+        var mine = new Pending(reference, currency, legs, Instant.now());
+        new JournalEntry(0, reference, currency, legs, mine.at); // reject unbalanced input before queueing
+        queued.add(mine);
+        commit.lock();
+        try {
+            if(mine.entry == null && mine.error == null) commitQueued();
+        } finally { commit.unlock(); }
+        if(mine.error != null) throw mine.error;
+        return mine.entry;
+    }
+
+    JournalEntry recordCharge(String transactionId, String method, Currency c, long listPrice, long charged, long fee, long discount){
+        return post(transactionId, c, new Posting(clearing(method), charged), new Posting(PROMOTIONS, discount),
+                new Posting(MERCHANT_PAYABLE, -listPrice), new Posting(FEE_REVENUE, -fee));
+    }
+
+    JournalEntry recordRefund(String refundId, String method, Currency c, long amount){
+        return post(refundId, c, new Posting(MERCHANT_PAYABLE, amount), new Posting(clearing(method), -amount));
+    }
+
+    static String clearing(String method){ return "clearing:" + method.toLowerCase(Locale.ROOT); }
+
+    /** Debits minus credits posted to {@code account} in {@code currency}. */
+    long balance(String account, Currency currency){
+        var b = balances.get(account);
+        return b == null ? 0 : b.get(currency.ordinal());
+    }
+
+    /** Sum of every account in {@code currency}; zero unless the books are broken. */
+    long trialBalance(Currency currency){
+        long sum = 0;
+        for(var b : balances.values()) sum += b.get(currency.ordinal());
+        return sum;
+    }
+
+    /** The journal so far, in sequence order; later entries don't appear in the returned view. */
+    List<JournalEntry> journal(){ return journal.snapshot(); }
+    long batchesCommitted(){ return batches.sum(); }
+
+    @Override public void close() throws IOException { if(log != null) log.close(); }
+
+    private void commitQueued(){
+        var batch = new ArrayList<Pending>();
+        for(Pending p; (p = queued.poll()) != null; ) batch.add(p);
+        long first = nextSequence;
+        var entries = new ArrayList<JournalEntry>(batch.size());
+        for(var p : batch) entries.add(new JournalEntry(nextSequence++, p.reference, p.currency, p.postings, p.at));
+        if(log != null){
+            long start = -1;
+            try {
+                if(broken != null) throw new IllegalStateException("Journal unusable after a failed batch", broken);
+                start = log.position();
+                for(var e : entries) log.append(encode(e));
+                log.flush(force);
+            } catch(IOException | RuntimeException e){
+                // The sequence numbers are reused, so the failed records must not reach the journal.
+                if(start >= 0 && broken == null){
+                    try { log.truncate(start); }
+                    catch(IOException | RuntimeException t){ broken = t instanceof IOException io ? io : new IOException(t); }
+                }
+                nextSequence = first;
+                var failure = e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+                for(var p : batch) p.error = failure;
+                return;
+            }
+        }
+        for(int i = 0; i < batch.size(); i++){ apply(entries.get(i)); batch.get(i).entry = entries.get(i); }
+        batches.increment();
+    }
+
+    private void apply(JournalEntry e){
+        for(var p : e.postings())
+            balances.computeIfAbsent(p.account(), k -> new AtomicLongArray(CURRENCIES)).addAndGet(e.currency().ordinal(), p.amount());
+        journal.append(e);
+        nextSequence = Math.max(nextSequence, e.sequence() + 1);
+    }
+
+    // [seq][epoch millis][currency][ref][count]([account][amount])*, strings as u16 length + UTF-8
+    private static byte[] encode(JournalEntry e){
+        var ref = e.reference().getBytes(StandardCharsets.UTF_8);
+        int size = 8 + 8 + 1 + 2 + ref.length + 2;
+        var names = new byte[e.postings().size()][];
+        for(int i = 0; i < names.length; i++){
+            names[i] = e.postings().get(i).account().getBytes(StandardCharsets.UTF_8);
+            size += 2 + names[i].length + 8;
+        }
+        var b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(e.sequence()).putLong(e.at().toEpochMilli()).put((byte) e.currency().ordinal());
+        b.putShort((short) ref.length).put(ref).putShort((short) names.length);
+        for(int i = 0; i < names.length; i++) b.putShort((short) names[i].length).put(names[i]).putLong(e.postings().get(i).amount());
+        return b.array();
+    }
+
+    private static JournalEntry decode(ByteBuffer in){
+        var b = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        long seq = b.getLong(); var at = Instant.ofEpochMilli(b.getLong()); var currency = Currency.values()[b.get()];
+        String ref = string(b);
+        int count = Short.toUnsignedInt(b.getShort());
+        var postings = new ArrayList<Posting>(count);
+        for(int n = 0; n < count; n++) postings.add(new Posting(string(b), b.getLong()));
+        return new JournalEntry(seq, ref, currency, postings, at);
+    }
+
+    private static String string(ByteBuffer b){
+        var bytes = new byte[Short.toUnsignedInt(b.getShort())];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// ======= Payment Providers =======
+/**
+ * A bank or UPI switch's answer; {@code reference} identifies the operation on the provider side.
+ * {@code transientFailure} marks answers that say nothing about the payment itself (timeouts,
+ * outages, shed load), as opposed to a decline.
+ */
+record ProviderResponse(boolean approved, String reference, String message, boolean transientFailure) {
+    static ProviderResponse approved(String reference){ return new ProviderResponse(true, reference, "Approved", false); }
+    static ProviderResponse declined(String message){ return new ProviderResponse(false, "", message, false); }
+    static ProviderResponse unavailable(String message){ return new ProviderResponse(false, "", message, true); }
+}
+
+/**
+ * The external side of a payment. Calls return at once; the future completes when the provider
+ * answers, so a caller holds no thread while a bank call is outstanding.
+ */
+interface PaymentProvider {
+    CompletableFuture<ProviderResponse> authorize(Payment payment, long amount);
+    /**
+     * Authorizes under the caller's idempotency key, which a provider that honours keys uses to answer
+     * a repeated attempt with the original result instead of authorizing twice. Ignored by default.
+     */
+    default CompletableFuture<ProviderResponse> authorize(Payment payment, long amount, IdempotencyKey key){
+        return authorize(payment, amount);
+    }
+    CompletableFuture<ProviderResponse> capture(Payment payment, String authorization, long amount);
+    CompletableFuture<ProviderResponse> refund(String transactionId, long amount);
+    /** Cancels an authorization that will never be captured, freeing the funds it holds. Unsupported by default. */
+    default CompletableFuture<ProviderResponse> voidAuthorization(Payment payment, String authorization){
+        return CompletableFuture.completedFuture(ProviderResponse.declined("Voids not supported"));
+    }
+}
+
+/** Simulated provider response times, in microseconds. */
+interface LatencyModel {
+    long sampleMicros(RandomGenerator random);
+
+    LatencyModel NONE = r -> 0;
+
+    static LatencyModel fixed(Duration d){
+        long us = d.toNanos() / 1_000;
+        return r -> us;
+    }
+    static LatencyModel uniform(Duration min, Duration max){
+        long lo = min.toNanos() / 1_000, hi = max.toNanos() / 1_000;
+        return r -> lo + (long) (r.nextDouble() * (hi - lo));
+    }
+    /** Log-normal with the given median and 99th percentile: the long right tail real bank calls have. */
+    static LatencyModel logNormal(Duration median, Duration p99){
+        double mu = Math.log(median.toNanos() / 1_000.0);
+        double sigma = (Math.log(p99.toNanos() / 1_000.0) - mu) / 2.326; // z of the 99th percentile
+        return r -> (long) Math.exp(mu + sigma * r.nextGaussian());
+    }
+    /**
+     * Hits the given p50, p90, p99 and p99.9 exactly, interpolating log-linearly between them; below
+     * the median it falls to a quarter of it, and above p99.9 it reaches twice that.
+     */
+    static LatencyModel percentiles(Duration p50, Duration p90, Duration p99, Duration p999){
+        double[] q = { 0, 0.5, 0.9, 0.99, 0.999, 1 };
+        double[] v = { p50.toNanos() / 4_000.0, p50.toNanos() / 1_000.0, p90.toNanos() / 1_000.0,
+                       p99.toNanos() / 1_000.0, p999.toNanos() / 1_000.0, p999.toNanos() / 500.0 };
+        for(int i = 1; i < v.length; i++)
+            if(v[i] < v[i - 1]) throw new IllegalArgumentException("Percentiles must not decrease");
+        double[] logs = Arrays.stream(v).map(x -> Math.log(Math.max(1, x))).toArray();
+        return r -> {
+            double u = r.nextDouble();
+            int i = 1;
+            while(u > q[i]) i++;
+            double t = (u - q[i - 1]) / (q[i] - q[i - 1]);
+            return (long) Math.exp(logs[i - 1] + t * (logs[i] - logs[i - 1]));
+        };
+    }
+}
+
+/**
+ * How one simulated rail behaves: latency, the client timeout, the share of calls the provider
+ * declines, and burst outages, which arrive on average every {@code meanTimeBetweenOutages} and
+ * last {@code meanOutage} (both exponentially distributed; null means none).
+ */
+record ProviderProfile(LatencyModel latency, Duration timeout, double declineRate, String declineMessage,
+                       Duration meanTimeBetweenOutages, Duration meanOutage) {
+    ProviderProfile {
+        Objects.requireNonNull(latency); Objects.requireNonNull(declineMessage);
+        if(declineRate < 0 || declineRate > 1) throw new IllegalArgumentException("declineRate must be in [0, 1]");
+        if((meanTimeBetweenOutages == null) != (meanOutage == null)) throw new IllegalArgumentException("Outages need both durations");
+    }
+
+    /** Answers at once, with no timeout or outages. */
+    static ProviderProfile instant(double declineRate, String declineMessage){
+        return new ProviderProfile(LatencyModel.NONE, null, declineRate, declineMessage, null, null);
+    }
+    static ProviderProfile card(){
+        return new ProviderProfile(LatencyModel.percentiles(Duration.ofMillis(180), Duration.ofMillis(400), Duration.ofMillis(1_200), Duration.ofMillis(3_000)),
+                Duration.ofSeconds(5), 0.03, "Card declined by issuer", null, null);
+    }
+    static ProviderProfile upi(){
+        return new ProviderProfile(LatencyModel.percentiles(Duration.ofMillis(600), Duration.ofMillis(1_500), Duration.ofMillis(4_000), Duration.ofMillis(9_000)),
+                Duration.ofSeconds(10), 0.04, "UPI provider error", null, null);
+    }
+    static ProviderProfile wallet(){
+        return new ProviderProfile(LatencyModel.percentiles(Duration.ofMillis(15), Duration.ofMillis(40), Duration.ofMillis(120), Duration.ofMillis(400)),
+                Duration.ofSeconds(1), 0.005, "Wallet service error", null, null);
+    }
+
+    ProviderProfile withLatency(LatencyModel model){
+        return new ProviderProfile(model, timeout, declineRate, declineMessage, meanTimeBetweenOutages, meanOutage);
+    }
+    ProviderProfile withTimeout(Duration t){
+        return new ProviderProfile(latency, t, declineRate, declineMessage, meanTimeBetweenOutages, meanOutage);
+    }
+    ProviderProfile withOutages(Duration meanTimeBetween, Duration meanLength){
+        return new ProviderProfile(latency, timeout, declineRate, declineMessage, meanTimeBetween, meanLength);
+    }
+}
+
+/** Counts of what a simulated provider answered. */
+record ProviderStats(long calls, long approved, long declined, long timedOut, long unavailable) {}
+
+/**
+ * Local stand-in for a bank, UPI switch or wallet service, driven by a {@link ProviderProfile}.
+ * Each thread draws from its own {@link SplittableRandom}, split from one seeded root the first time
+ * the thread calls, so there is no shared RNG to contend on and a single-threaded run repeats exactly.
+ * The outcome is decided when the call is made; the answer is delivered after the sampled delay (or
+ * the timeout, if that is shorter) by a shared timer thread rather than a thread parked per call.
+ */
+final class SimulatedProvider implements PaymentProvider {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "provider-sim"); t.setDaemon(true); return t;
+    });
+
+    private record Outage(long start, long end) {}
+
+    private final ProviderProfile profile;
+    private final LongSupplier clock;
+    private final SplittableRandom root;
+    private final ReentrantLock splitting = new ReentrantLock();
+    private final ThreadLocal<SplittableRandom> random = ThreadLocal.withInitial(this::split);
+    private final AtomicReference<Outage> outage = new AtomicReference<>();
+    private final AtomicLong references = new AtomicLong();
+    private final LongAdder calls = new LongAdder(), approved = new LongAdder(), declined = new LongAdder(),
+            timedOut = new LongAdder(), unavailable = new LongAdder();
+
+    SimulatedProvider(ProviderProfile profile, long seed, LongSupplier clockMillis){
+        this.profile = profile; this.clock = clockMillis; this.root = new SplittableRandom(seed);
+        if(profile.meanOutage() != null){
+            long now = clock.getAsLong();
+            outage.set(nextOutage(now, random.get()));
+        }
+    }
+    SimulatedProvider(ProviderProfile profile){ this(profile, 42, System::currentTimeMillis); }
+
+    ProviderStats stats(){
+        return new ProviderStats(calls.sum(), approved.sum(), declined.sum(), timedOut.sum(), unavailable.sum());
+    }
+
+    @Override public CompletableFuture<ProviderResponse> authorize(Payment payment, long amount){
+        return call(true, () -> "AUTH-" + references.incrementAndGet());
+    }
+    @Override public CompletableFuture<ProviderResponse> capture(Payment payment, String authorization, long amount){
+        return call(false, () -> "CAP-" + authorization);
+    }
+    @Override public CompletableFuture<ProviderResponse> refund(String transactionId, long amount){
+        return call(false, () -> "RF-" + references.incrementAndGet());
+    }
+    @Override public CompletableFuture<ProviderResponse> voidAuthorization(Payment payment, String authorization){
+        return call(false, () -> "VOID-" + authorization);
+    }
+
+    /** Declines apply to authorizations only; timeouts and outages hit every call. */
+    private CompletableFuture<ProviderResponse> call(boolean mayDecline, java.util.function.Supplier<String> reference){
+        calls.increment();
+        var rnd = random.get();
+        if(inOutage(clock.getAsLong(), rnd)){
+            unavailable.increment();
+            return CompletableFuture.completedFuture(ProviderResponse.unavailable("Provider unavailable"));
+        }
+        long us = profile.latency().sampleMicros(rnd);
+        var timeout = profile.timeout();
+        if(timeout != null && us >= timeout.toNanos() / 1_000){
+            timedOut.increment();
+            return deliver(ProviderResponse.unavailable("Provider timed out after " + timeout.toMillis() + " ms"), timeout.toNanos() / 1_000);
+        }
+        if(mayDecline && rnd.nextDouble() < profile.declineRate()){
+            declined.increment();
+            return deliver(ProviderResponse.declined(profile.declineMessage()), us);
+        }
+        approved.increment();
+        return deliver(ProviderResponse.approved(reference.get()), us);
+    }
+
+    private boolean inOutage(long now, SplittableRandom rnd){
+        if(profile.meanOutage() == null) return false;
+        var o = outage.get();
+        while(now >= o.end()){ // roll forward to the next burst; a lost CAS means another caller already did
+            var next = nextOutage(o.end(), rnd);
+            outage.compareAndSet(o, next);
+            o = outage.get();
+        }
+        return now >= o.start();
+    }
+
+    private Outage nextOutage(long after, SplittableRandom rnd){
+        long start = after + exponential(profile.meanTimeBetweenOutages(), rnd);
+        return new Outage(start, start + Math.max(1, exponential(profile.meanOutage(), rnd)));
+    }
+
+    private static long exponential(Duration mean, SplittableRandom rnd){
+        return (long) (-Math.log(1 - rnd.nextDouble()) * mean.toMillis());
+    }
+
+    private SplittableRandom split(){
+        splitting.lock();
+        try { return root.split(); } finally { splitting.unlock(); }
+    }
+
+    private static CompletableFuture<ProviderResponse> deliver(ProviderResponse response, long micros){
+        if(micros <= 0) return CompletableFuture.completedFuture(response);
+        var f = new CompletableFuture<ProviderResponse>();
+        TIMER.schedule(() -> f.complete(response), micros, TimeUnit.MICROSECONDS);
+        return f;
+    }
+}
+
+// ======= Circuit Breakers and Bulkheads =======
+/**
+ * Stops calling a provider that is failing or slow. Closed, it keeps the outcomes of the last
+ * {@code window} calls; once at least {@code minimumCalls} are in and the share of failures or of
+ * slow calls reaches its threshold, it opens and rejects every call for {@code openFor}. It then
+ * lets {@code probes} trial calls through (half-open): all succeeding closes it, any failing or
+ * slow one opens it again. Each admitted call carries the generation it was admitted in, so a
+ * straggler from before a transition cannot count toward the state after it.
+ */
+final class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    record Config(int window, int minimumCalls, double failureRateThreshold, Duration slowCall,
+                  double slowCallRateThreshold, Duration openFor, int probes) {
+        Config {
+            if(window < 1 || minimumCalls < 1 || minimumCalls > window) throw new IllegalArgumentException("Need 1 <= minimumCalls <= window");
+            if(failureRateThreshold <= 0 || failureRateThreshold > 1 || slowCallRateThreshold <= 0 || slowCallRateThreshold > 1)
+                throw new IllegalArgumentException("Thresholds must be in (0, 1]");
+            if(probes < 1) throw new IllegalArgumentException("Need at least one probe");
+            Objects.requireNonNull(slowCall); Objects.requireNonNull(openFor);
+        }
+        static Config defaults(){
+            return new Config(100, 20, 0.5, Duration.ofSeconds(2), 0.8, Duration.ofSeconds(30), 5);
+        }
+    }
+
+    private static final byte FAILED = 1, SLOW = 2;
+
+    private final String name;
+    private final Config config;
+    private final LongSupplier clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[] outcomes;
+    private int next, filled, failures, slow;          // the sliding window, under lock
+    private long openedAt;
+    private int probesIssued, probesPassed;
+    private volatile State state = State.CLOSED;
+    private volatile long generation;
+    private final LongAdder calls = new LongAdder(), rejected = new LongAdder();
+    private final AtomicLong opened = new AtomicLong();
+
+    CircuitBreaker(String name, Config config, LongSupplier clockMillis){
+        this.name = name; this.config = config; this.clock = clockMillis;
+        this.outcomes = new byte[config.window()];
+    }
+
+    /** A permit (the current generation) for one call, or -1 if the call must not go out. */
+    long tryAcquire(){
+        if(state == State.CLOSED){ calls.increment(); return generation; } // the common case takes no lock
+        lock.lock();
+        try {
+            if(state == State.OPEN){
+                if(clock.getAsLong() - openedAt < config.openFor().toMillis()){ rejected.increment(); return -1; }
+                transition(State.HALF_OPEN);
+            }
+            if(state == State.HALF_OPEN){
+                if(probesIssued == config.probes()){ rejected.increment(); return -1; }
+                probesIssued++;
+            }
+            calls.increment();
+            return generation;
+        } finally { lock.unlock(); }
+    }
+
+    /** Reports how a call admitted under {@code permit} went. */
+    void onComplete(long permit, boolean failed, long latencyMillis){
+        boolean isSlow = latencyMillis >= config.slowCall().toMillis();
+        lock.lock();
+        try {
+            if(permit != generation) return;
+            switch(state){
+                case HALF_OPEN -> {
+                    if(failed || isSlow) trip();
+                    else if(++probesPassed == config.probes()) transition(State.CLOSED);
+                }
+                case CLOSED -> {
+                    byte old = outcomes[next];
+                    if(filled == outcomes.length){ failures -= old & FAILED; slow -= (old & SLOW) >> 1; } else filled++;
+                    byte now = (byte) ((failed ? FAILED : 0) | (isSlow ? SLOW : 0));
+                    outcomes[next] = now;
+                    failures += now & FAILED; slow += (now & SLOW) >> 1;
+                    next = (next + 1) % outcomes.length;
+                    if(filled >= config.minimumCalls()
+                            && (failures >= config.failureRateThreshold() * filled || slow >= config.slowCallRateThreshold() * filled))
+                        trip();
+                }
+                case OPEN -> {} // unreachable: the generation moved when it opened
+            }
+        } finally { lock.unlock(); }
+    }
 
-record IdempotencyKey(String value) { public IdempotencyKey { Objects.requireNonNull(value); } }
+    State state(){ return state; }
 
-record PaymentResult(String transactionId, Status status, double chargedAmount, String message) {}
-record RefundResult(String refundId, Status status, double refundedAmount, String message) {}
+    BreakerMetrics metrics(){
+        lock.lock();
+        try {
+            double f = filled == 0 ? 0 : (double) failures / filled, sl = filled == 0 ? 0 : (double) slow / filled;
+            return new BreakerMetrics(name, state, filled, f, sl, calls.sum(), rejected.sum(), opened.get());
+        } finally { lock.unlock(); }
+    }
 
-record Receipt(String transactionId, String userId, String method, String maskedInfo,
-               double amount, double chargedAmount, double fee, double discount,
-               Status status, Instant createdAt) {
-    @Override public String toString(){
-        return "["+transactionId+" " + status + " " + formatMoney(chargedAmount) +
-               "] " + method + "(" + maskedInfo + ")";
+    private void trip(){
+        openedAt = clock.getAsLong();
+        opened.incrementAndGet();
+        transition(State.OPEN);
     }
-    private static String formatMoney(double v){ return String.format(Locale.US, "\u20B9%.2f", v); }
-}
 
-// ======= Notifier =======
-interface Notifier { void notify(String userId, Receipt receipt); }
-final class EmailNotifier implements Notifier {
-    @Override public void notify(String userId, Receipt r){
-        System.out.println("[Email to "+userId+"] " + r);
+    private void transition(State to){
+        generation++;
+        probesIssued = probesPassed = 0;
+        if(to == State.CLOSED){ Arrays.fill(outcomes, (byte) 0); next = filled = failures = slow = 0; }
+        state = to;
     }
 }
-final class SMSNotifier implements Notifier {
-    @Override public void notify(String userId, Receipt r){
-        System.out.println("[SMS to "+userId+"] " + r);
+
+record BreakerMetrics(String name, CircuitBreaker.State state, int windowCalls, double failureRate,
+                      double slowCallRate, long calls, long rejected, long timesOpened) {}
+
+/** Caps the calls outstanding on one rail; a call over the cap is turned away rather than queued. */
+final class Bulkhead {
+    private final String name;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final LongAdder rejected = new LongAdder();
+
+    Bulkhead(String name, int maxConcurrent){
+        if(maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be positive");
+        this.name = name; this.maxConcurrent = maxConcurrent; this.permits = new Semaphore(maxConcurrent);
+    }
+
+    boolean tryAcquire(){
+        if(permits.tryAcquire()) return true;
+        rejected.increment();
+        return false;
+    }
+    void release(){ permits.release(); }
+
+    BulkheadMetrics metrics(){
+        return new BulkheadMetrics(name, maxConcurrent, maxConcurrent - permits.availablePermits(), rejected.sum());
     }
 }
 
-// ======= Repository & Transaction Model =======
-final class Transaction {
-    final String id;
-    final String userId;
-    final String methodName;
-    final Currency currency;
-    final double originalAmount; // pre-discount
-    double capturedAmount;       // what was actually charged
-    double totalRefunded;
-    Status status;
-    final String maskedInfo;
-    final Instant createdAt;
-    final IdempotencyKey key; // may be null for non-idempotent ops
+record BulkheadMetrics(String name, int maxConcurrent, int inUse, long rejected) {}
 
-    Transaction(String id, String userId, String methodName, Currency currency,
-                double originalAmount, double capturedAmount, String maskedInfo,
-                Status status, Instant createdAt, IdempotencyKey key){
-        this.id = id; this.userId = userId; this.methodName = methodName; this.currency = currency;
-        this.originalAmount = originalAmount; this.capturedAmount = capturedAmount;
-        this.totalRefunded = 0.0; this.status = status; this.maskedInfo = maskedInfo;
-        this.createdAt = createdAt; this.key = key;
+record ProviderHealth(BreakerMetrics breaker, BulkheadMetrics bulkhead) {}
+
+/**
+ * Puts a rail's provider behind its own bulkhead and circuit breaker. Both refuse by answering at
+ * once with a transient failure, so a degraded acquirer costs callers nothing while the breaker is
+ * open, and a slow rail can tie up at most its own bulkhead's worth of calls. Transient failures
+ * and exceptions count against the breaker; ordinary declines do not.
+ */
+final class GuardedProvider implements PaymentProvider {
+    private final String rail;
+    private final PaymentProvider delegate;
+    private final CircuitBreaker breaker;
+    private final Bulkhead bulkhead;
+    private final LongSupplier clock;
+
+    GuardedProvider(String rail, PaymentProvider delegate, CircuitBreaker.Config breaker, int maxConcurrent, LongSupplier clockMillis){
+        this.rail = rail; this.delegate = Objects.requireNonNull(delegate); this.clock = clockMillis;
+        this.breaker = new CircuitBreaker(rail, breaker, clockMillis);
+        this.bulkhead = new Bulkhead(rail, maxConcurrent);
+    }
+    GuardedProvider(String rail, PaymentProvider delegate, int maxConcurrent){
+        this(rail, delegate, CircuitBreaker.Config.defaults(), maxConcurrent, System::currentTimeMillis);
+    }
+
+    ProviderHealth health(){ return new ProviderHealth(breaker.metrics(), bulkhead.metrics()); }
+    CircuitBreaker breaker(){ return breaker; }
+
+    @Override public CompletableFuture<ProviderResponse> authorize(Payment payment, long amount){
+        return guard(() -> delegate.authorize(payment, amount));
+    }
+    @Override public CompletableFuture<ProviderResponse> authorize(Payment payment, long amount, IdempotencyKey key){
+        return guard(() -> delegate.authorize(payment, amount, key));
+    }
+    @Override public CompletableFuture<ProviderResponse> capture(Payment payment, String authorization, long amount){
+        return guard(() -> delegate.capture(payment, authorization, amount));
+    }
+    @Override public CompletableFuture<ProviderResponse> refund(String transactionId, long amount){
+        return guard(() -> delegate.refund(transactionId, amount));
+    }
+    @Override public CompletableFuture<ProviderResponse> voidAuthorization(Payment payment, String authorization){
+        return guard(() -> delegate.voidAuthorization(payment, authorization));
+    }
+
+    private CompletableFuture<ProviderResponse> guard(java.util.function.Supplier<CompletableFuture<ProviderResponse>> call){
+        if(!bulkhead.tryAcquire())
+            return CompletableFuture.completedFuture(ProviderResponse.unavailable(rail + " rail busy"));
+        long permit = breaker.tryAcquire();
+        if(permit < 0){
+            bulkhead.release();
+            return CompletableFuture.completedFuture(ProviderResponse.unavailable("Circuit open for " + rail));
+        }
+        long start = clock.getAsLong();
+        CompletableFuture<ProviderResponse> f;
+        try { f = call.get(); }
+        catch(RuntimeException e){
+            bulkhead.release();
+            breaker.onComplete(permit, true, 0);
+            throw e;
+        }
+        return f.whenComplete((r, e) -> {
+            bulkhead.release();
+            breaker.onComplete(permit, e != null || r.transientFailure(), clock.getAsLong() - start);
+        });
     }
 }
 
-interface TransactionRepository {
-    void save(Transaction tx);
-    Optional<Transaction> findById(String id);
-    Optional<Transaction> findByIdempotency(IdempotencyKey key);
-    List<Transaction> findByUser(String userId);
+// ======= Retries and Hedging =======
+/**
+ * How {@link RetryingProvider} retries transient failures: up to {@code maxAttempts} attempts,
+ * waiting a full-jitter exponential backoff (uniform in [0, min(maxDelay, baseDelay * 2^n)])
+ * between them. With {@code hedge} on, an authorization still unanswered after the observed p95
+ * latency ({@code initialHedgeDelay} until enough calls have been seen) gets a second, concurrent
+ * call within the same attempt, and the first definitive answer wins. Retries and hedges alike draw
+ * on a budget of {@code budgetRatio} extra calls per call, plus {@code minRetriesPerSecond} always allowed.
+ */
+record RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, boolean hedge, Duration initialHedgeDelay,
+                   double budgetRatio, int minRetriesPerSecond) {
+    RetryPolicy {
+        if(maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+        if(budgetRatio < 0 || minRetriesPerSecond < 0) throw new IllegalArgumentException("Budget must not be negative");
+        Objects.requireNonNull(baseDelay); Objects.requireNonNull(maxDelay); Objects.requireNonNull(initialHedgeDelay);
+    }
+
+    static RetryPolicy backoff(int maxAttempts, Duration baseDelay, Duration maxDelay){
+        return new RetryPolicy(maxAttempts, baseDelay, maxDelay, false, Duration.ofSeconds(1), 0.1, 10);
+    }
+    static RetryPolicy defaults(){ return backoff(3, Duration.ofMillis(50), Duration.ofSeconds(1)); }
+
+    RetryPolicy withHedging(Duration untilMeasured){
+        return new RetryPolicy(maxAttempts, baseDelay, maxDelay, true, untilMeasured, budgetRatio, minRetriesPerSecond);
+    }
+    RetryPolicy withBudget(double ratio, int minPerSecond){
+        return new RetryPolicy(maxAttempts, baseDelay, maxDelay, hedge, initialHedgeDelay, ratio, minPerSecond);
+    }
+
+    /** Full-jitter delay before attempt {@code attempt + 1}, in microseconds. */
+    long backoffMicros(int attempt, RandomGenerator random){
+        long cap = Math.min(maxDelay.toNanos() / 1_000, (baseDelay.toNanos() / 1_000) << Math.min(attempt - 1, 30));
+        return cap <= 0 ? 0 : random.nextLong(cap + 1);
+    }
 }
 
-final class InMemoryTransactionRepository implements TransactionRepository {
-    private final Map<String, Transaction> byId = new ConcurrentHashMap<>();
-    private final Map<String, Transaction> byIdem = new ConcurrentHashMap<>();
-    private final Map<String, List<Transaction>> byUser = new ConcurrentHashMap<>();
+/**
+ * Bounds the extra calls retries may add, so retrying cannot multiply load on a provider that is
+ * already failing. Each original call deposits {@code ratio} of a retry (banking at most 1,000
+ * calls' worth), each retry withdraws one, and a fixed allowance per clock second keeps a quiet
+ * rail able to retry at all.
+ */
+final class RetryBudget {
+    private static final long UNIT = 1_000; // one retry, in milli-tokens
+    private final long deposit, cap;
+    private final int minPerSecond;
+    private final LongSupplier clock;
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong window = new AtomicLong(); // (second << 32) | retries taken from the allowance that second
 
-    @Override public void save(Transaction tx){
-        byId.put(tx.id, tx);
-        if(tx.key != null) byIdem.put(tx.key.value(), tx);
-        byUser.computeIfAbsent(tx.userId, k -> new ArrayList<>()).add(tx);
+    RetryBudget(double ratio, int minPerSecond, LongSupplier clockMillis){
+        this.deposit = Math.round(ratio * UNIT); this.cap = Math.max(UNIT, deposit * 1_000);
+        this.minPerSecond = minPerSecond; this.clock = clockMillis;
     }
-    @Override public Optional<Transaction> findById(String id){ return Optional.ofNullable(byId.get(id)); }
-    @Override public Optional<Transaction> findByIdempotency(IdempotencyKey key){
-        return Optional.ofNullable(byIdem.get(key.value()));
+
+    void onCall(){
+        long b;
+        do { b = balance.get(); if(b >= cap) return; } while(!balance.compareAndSet(b, Math.min(cap, b + deposit)));
     }
-    @Override public List<Transaction> findByUser(String userId){
-        return Collections.unmodifiableList(byUser.getOrDefault(userId, List.of()));
+
+    boolean tryRetry(){
+        long second = clock.getAsLong() / 1_000;
+        for(long w; ; ){
+            w = window.get();
+            long used = (w >>> 32) == second ? (int) w : 0;
+            if(used >= minPerSecond) break;
+            if(window.compareAndSet(w, (second << 32) | (used + 1))) return true;
+        }
+        for(long b; (b = balance.get()) >= UNIT; ) if(balance.compareAndSet(b, b - UNIT)) return true;
+        return false;
     }
 }
 
-// ======= Fee & Promo Strategies =======
-interface FeeStrategy { double apply(double amountAfterDiscount, Payment payment); }
+/** The most recent answer latencies, for the hedging delay; quantiles are refreshed every 64 samples. */
+final class LatencyWindow {
+    private static final int SIZE = 1024, REFRESH = 64;
+    private final AtomicLongArray samples = new AtomicLongArray(SIZE);
+    private final AtomicLong count = new AtomicLong();
+    private final double quantile;
+    private volatile long cached = -1;
 
-final class RegistryFeeStrategy implements FeeStrategy {
-    private final Map<Class<? extends Payment>, Function<Double, Double>> fees = new HashMap<>();
-    public <T extends Payment> void register(Class<T> clazz, double percent){
-        fees.put(clazz, amt -> amt * percent / 100.0);
+    LatencyWindow(double quantile){ this.quantile = quantile; }
+
+    void record(long micros){
+        long n = count.getAndIncrement();
+        samples.set((int) (n % SIZE), micros);
+        if((n + 1) % REFRESH == 0) cached = compute(Math.min(n + 1, SIZE));
     }
-    @Override public double apply(double base, Payment p){
-        var fn = fees.getOrDefault(p.getClass(), amt -> 0.0);
-        return round2(fn.apply(base));
+
+    /** The quantile in microseconds, or -1 until {@value #REFRESH} samples are in. */
+    long quantileMicros(){ return cached; }
+
+    private long compute(long n){
+        long[] copy = new long[(int) n];
+        for(int i = 0; i < n; i++) copy[i] = samples.get(i);
+        Arrays.sort(copy);
+        return copy[(int) Math.min(n - 1, (long) Math.ceil(quantile * n) - 1)];
     }
-    static double round2(double v){ return Math.round(v * 100.0)/100.0; }
 }
 
-interface Promo { double apply(double amount); }
-final class NoPromo implements Promo { public double apply(double amount){ return amount; } }
-final class FlatPromo implements Promo {
-    private final double flat; public FlatPromo(double flat){ this.flat = flat; }
-    public double apply(double amount){ return Math.max(0.0, amount - flat); }
+record RetryMetrics(long calls, long retries, long hedges, long hedgeWins, long losersVoided, long budgetExhausted, long p95Micros) {}
+
+/**
+ * Retries a provider's transient failures (see {@link ProviderResponse#transientFailure}) under a
+ * {@link RetryPolicy}; declines are answers and go straight back. Every attempt of an authorization
+ * carries the caller's idempotency key, so a provider that saw an earlier attempt succeed answers
+ * with that result rather than authorizing again; captures repeat the same authorization reference
+ * and refunds the same transaction id. An approval that loses a hedged race is voided unless the
+ * provider answered it with the winning authorization. Wrap it around a {@link GuardedProvider}, so
+ * each attempt passes the rail's bulkhead and breaker.
+ */
+final class RetryingProvider implements PaymentProvider {
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        var t = new Thread(r, "provider-retry"); t.setDaemon(true); return t;
+    });
+    static { TIMER.setRemoveOnCancelPolicy(true); } // most hedges are cancelled; don't let them pile up
+
+    private final PaymentProvider delegate;
+    private final RetryPolicy policy;
+    private final RetryBudget budget;
+    private final LatencyWindow latency = new LatencyWindow(0.95);
+    private final LongAdder calls = new LongAdder(), retries = new LongAdder(), hedges = new LongAdder(),
+            hedgeWins = new LongAdder(), losersVoided = new LongAdder(), exhausted = new LongAdder();
+
+    RetryingProvider(PaymentProvider delegate, RetryPolicy policy, LongSupplier clockMillis){
+        this.delegate = Objects.requireNonNull(delegate); this.policy = policy;
+        this.budget = new RetryBudget(policy.budgetRatio(), policy.minRetriesPerSecond(), clockMillis);
+    }
+    RetryingProvider(PaymentProvider delegate, RetryPolicy policy){ this(delegate, policy, System::currentTimeMillis); }
+
+    PaymentProvider delegate(){ return delegate; }
+
+    RetryMetrics metrics(){
+        return new RetryMetrics(calls.sum(), retries.sum(), hedges.sum(), hedgeWins.sum(), losersVoided.sum(), exhausted.sum(), latency.quantileMicros());
+    }
+
+    @Override public CompletableFuture<ProviderResponse> authorize(Payment payment, long amount){
+        return authorize(payment, amount, null);
+    }
+    @Override public CompletableFuture<ProviderResponse> authorize(Payment payment, long amount, IdempotencyKey key){
+        return run(() -> delegate.authorize(payment, amount, key), policy.hedge() ? loser -> voidLoser(payment, loser) : null);
+    }
+    @Override public CompletableFuture<ProviderResponse> capture(Payment payment, String authorization, long amount){
+        return run(() -> delegate.capture(payment, authorization, amount), null);
+    }
+    @Override public CompletableFuture<ProviderResponse> refund(String transactionId, long amount){
+        return run(() -> delegate.refund(transactionId, amount), null);
+    }
+    @Override public CompletableFuture<ProviderResponse> voidAuthorization(Payment payment, String authorization){
+        return run(() -> delegate.voidAuthorization(payment, authorization), null);
+    }
+
+    /** Voids the authorization of an approval that lost its race, retried like any call but not counted as one. */
+    private void voidLoser(Payment payment, String authorization){
+        losersVoided.increment();
+        attempt(() -> delegate.voidAuthorization(payment, authorization), 1, null, new CompletableFuture<>());
+    }
+
+    /** {@code voidLoser} is null for calls that are never hedged. */
+    private CompletableFuture<ProviderResponse> run(java.util.function.Supplier<CompletableFuture<ProviderResponse>> call,
+                                                    Consumer<String> voidLoser){
+        calls.increment();
+        budget.onCall();
+        var result = new CompletableFuture<ProviderResponse>();
+        attempt(call, 1, voidLoser, result);
+        return result;
+    }
+
+    private void attempt(java.util.function.Supplier<CompletableFuture<ProviderResponse>> call, int n, Consumer<String> voidLoser,
+                         CompletableFuture<ProviderResponse> result){
+        var race = new Race(voidLoser);
+        race.enter(timed(call), false);
+        if(voidLoser != null){
+            long p95 = latency.quantileMicros();
+            long delay = p95 >= 0 ? p95 : policy.initialHedgeDelay().toNanos() / 1_000;
+            var hedge = TIMER.schedule(() -> {
+                if(race.join()){
+                    if(budget.tryRetry()){ hedges.increment(); race.enter(timed(call), true); }
+                    else { exhausted.increment(); race.leave(); }
+                }
+            }, delay, TimeUnit.MICROSECONDS);
+            race.answer.whenComplete((r, e) -> hedge.cancel(false));
+        }
+        race.answer.whenComplete((r, e) -> {
+            if(e == null && !r.transientFailure() || n >= policy.maxAttempts()){ complete(result, r, e); return; }
+            if(!budget.tryRetry()){ exhausted.increment(); complete(result, r, e); return; }
+            retries.increment();
+            TIMER.schedule(() -> attempt(call, n + 1, voidLoser, result),
+                    policy.backoffMicros(n, ThreadLocalRandom.current()), TimeUnit.MICROSECONDS);
+        });
+    }
+
+    /** Starts one call and feeds the latency of each definitive answer into the hedging delay. */
+    private CompletableFuture<ProviderResponse> timed(java.util.function.Supplier<CompletableFuture<ProviderResponse>> call){
+        long start = System.nanoTime();
+        CompletableFuture<ProviderResponse> f;
+        try { f = call.get(); } catch(RuntimeException e){ return CompletableFuture.failedFuture(e); }
+        return f.whenComplete((r, e) -> {
+            if(e == null && !r.transientFailure()) latency.record((System.nanoTime() - start) / 1_000);
+        });
+    }
+
+    private static void complete(CompletableFuture<ProviderResponse> result, ProviderResponse r, Throwable e){
+        if(e != null) result.completeExceptionally(e); else result.complete(r);
+    }
+
+    /**
+     * One round of attempts, the primary plus perhaps a hedge: settles with the first definitive
+     * answer or, once every attempt has failed, with the last failure. A later approval holds funds
+     * of its own unless the provider answered it with the winning authorization, so it is voided.
+     */
+    private final class Race {
+        final CompletableFuture<ProviderResponse> answer = new CompletableFuture<>();
+        private final AtomicBoolean settled = new AtomicBoolean(); // set by whoever completes answer, before it does
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final Consumer<String> voidLoser;
+        private volatile ProviderResponse lastResponse;
+        private volatile Throwable lastError;
+
+        Race(Consumer<String> voidLoser){ this.voidLoser = voidLoser; }
+
+        void enter(CompletableFuture<ProviderResponse> attempt, boolean isHedge){
+            attempt.whenComplete((r, e) -> {
+                if(e == null && !r.transientFailure()){
+                    if(settled.compareAndSet(false, true)){
+                        if(isHedge) hedgeWins.increment(); // before the answer, so its caller sees the win counted
+                        answer.complete(r);
+                    } else if(r.approved()){
+                        answer.whenComplete((won, ignored) -> {
+                            if(won == null || !r.reference().equals(won.reference())) voidLoser.accept(r.reference());
+                        });
+                    }
+                    return;
+                }
+                lastResponse = r; lastError = e;
+                leave();
+            });
+        }
+        /** Reserves a place for a hedge, unless the round is already over. */
+        boolean join(){
+            for(int n; (n = outstanding.get()) > 0 && !settled.get(); )
+                if(outstanding.compareAndSet(n, n + 1)) return true;
+            return false;
+        }
+        /** Gives up a place; the last one out settles the round with the last failure. */
+        void leave(){
+            if(outstanding.decrementAndGet() == 0 && settled.compareAndSet(false, true)) complete(answer, lastResponse, lastError);
+        }
+    }
 }
-final class PercentagePromo implements Promo {
-    private final double pct; public PercentagePromo(double pct){ this.pct = pct; }
-    public double apply(double amount){ return amount * (1.0 - pct/100.0); }
+
+// ======= Thread-per-task Execution =======
+/** Thread-per-task executors: virtual threads where the JVM has them (Java 21+), platform threads otherwise. */
+final class PaymentThreads {
+    private PaymentThreads(){}
+
+    static ExecutorService perTask(String name){
+        try {
+            // Looked up reflectively so the gateway still builds and runs on Java 17.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e){
+            return Executors.newCachedThreadPool(r -> { var t = new Thread(r, name); t.setDaemon(true); return t; });
+        }
+    }
+
+    static boolean virtualThreadsAvailable(){
+        try { Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); return true; }
+        catch(NoSuchMethodException e){ return false; }
+    }
+}
+
+/**
+ * Owns the subtasks of one payment, after {@code StructuredTaskScope}, which this JDK lacks: every
+ * subtask forked from the owning thread has finished when {@link #close} returns. With
+ * {@code shutdownOnFailure} the first failure cancels the others and later forks are skipped;
+ * without it every subtask runs to the end and every failure is kept. Not for use across threads
+ * other than its owner.
+ */
+final class PaymentScope implements AutoCloseable {
+    private final ExecutorService executor;
+    private final boolean shutdownOnFailure;
+    private final Phaser running = new Phaser(1); // the owner plus one party per live subtask
+    private final List<Future<?>> forks = new CopyOnWriteArrayList<>();
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+
+    PaymentScope(ExecutorService executor, boolean shutdownOnFailure){
+        this.executor = executor; this.shutdownOnFailure = shutdownOnFailure;
+    }
+
+    void fork(Runnable task){
+        if(shutdownOnFailure && !failures.isEmpty()) return;
+        running.register();
+        var claimed = new AtomicBoolean(); // whoever sets it arrives for this subtask: the body, or a cancel before it ran
+        var f = new FutureTask<Void>(() -> {
+            if(!claimed.compareAndSet(false, true)) return;
+            try { task.run(); }
+            catch(Throwable t){
+                failures.add(t);
+                if(shutdownOnFailure && shutDown.compareAndSet(false, true)) shutdown();
+            }
+            finally { running.arriveAndDeregister(); }
+        }, null) {
+            @Override protected void done(){
+                if(isCancelled() && claimed.compareAndSet(false, true)) running.arriveAndDeregister();
+            }
+        };
+        forks.add(f);
+        try {
+            executor.execute(f);
+        } catch(RuntimeException e){
+            f.cancel(false);
+            throw e;
+        }
+    }
+
+    /** Waits for every forked subtask to finish or be cancelled. */
+    PaymentScope join() throws InterruptedException {
+        for(var f : forks){
+            try { f.get(); }
+            catch(ExecutionException | CancellationException ignored){} // recorded in failures, or cancelled by one
+        }
+        return this;
+    }
+
+    /** Every subtask failure so far, in the order they were recorded. */
+    List<Throwable> failures(){ return List.copyOf(failures); }
+
+    void throwIfFailed(){
+        var t = failures.peek();
+        if(t instanceof RuntimeException re) throw re;
+        if(t instanceof Error err) throw err;
+        if(t != null) throw new CompletionException(t);
+    }
+
+    private void shutdown(){ for(var f : forks) f.cancel(true); }
+
+    /** Cancels what is still running and waits for it to stop. */
+    @Override public void close(){
+        shutdown();
+        running.arriveAndAwaitAdvance();
+    }
 }
 
 // ======= Payment Abstraction =======
 abstract class Payment {
     protected final String transactionId;
-    protected final double amount;
+    protected final long amount; // minor units
     protected final Currency currency;
     protected final String userId;
 
     protected Payment(String transactionId, double amount, Currency currency, String userId){
         this.transactionId = Objects.requireNonNull(transactionId);
-        if(amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-        this.amount = round2(amount);
         this.currency = Objects.requireNonNull(currency);
+        this.amount = Money.toMinor(amount, currency);
+        if(this.amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
         this.userId = Objects.requireNonNull(userId);
     }
 
-    public abstract PaymentResult process(IdempotencyKey key, PaymentProcessor.Context ctx);
-    public abstract RefundResult refund(double amountToRefund, PaymentProcessor.Context ctx);
+    /** Prices and charges the payment; blocking steps run on the context's executor. */
+    public abstract CompletableFuture<PaymentResult> processAsync(IdempotencyKey key, PaymentProcessor.Context ctx);
+    public abstract RefundResult refund(Money amountToRefund, PaymentProcessor.Context ctx);
     public abstract String getMaskedInfo();
     public abstract String methodName();
 
-    protected static double round2(double v){ return Math.round(v * 100.0)/100.0; }
+    public PaymentResult process(IdempotencyKey key, PaymentProcessor.Context ctx){
+        return PaymentProcessor.join(processAsync(key, ctx));
+    }
+
+    protected PaymentResult failed(String message){
+        return new PaymentResult(transactionId, Status.FAILED, Money.zero(currency), message);
+    }
+
+    /** Authorizes and captures through the provider, then records and notifies once it has approved. */
+    protected CompletableFuture<PaymentResult> chargeThroughProvider(IdempotencyKey key, PaymentProcessor.Context ctx, String approvedMessage){
+        long discounted = ctx.promo.apply(amount, this);
+        long fee = ctx.fees.apply(discounted, this);
+        long charged = discounted + fee;
+        var provider = ctx.provider(this);
+        var call = provider.authorize(this, charged, key).thenCompose(auth -> auth.approved()
+                ? provider.capture(this, auth.reference(), charged) : CompletableFuture.completedFuture(auth));
+        return ctx.settle(call, resp -> {
+            if(!resp.approved()) return failed(resp.message());
+            ctx.persistSuccess(this, charged, fee, amount - discounted, key);
+            ctx.notify(this, charged, fee, amount - discounted, Status.SUCCESS);
+            return new PaymentResult(transactionId, Status.SUCCESS, Money.ofMinor(charged, currency), approvedMessage);
+        });
+    }
 }
 
 final class CreditCardPayment extends Payment {
@@ -152,20 +3326,20 @@ final class CreditCardPayment extends Payment {
         this.expiry = Objects.requireNonNull(expiry);
         if(expiry.isBefore(YearMonth.from(LocalDate.now())))
             throw new IllegalArgumentException("Card expired");
-        if(cvv == null || cvv.length() < 3 || cvv.length() > 4)
+        if(!PaymentValidation.digits(cvv, 3, 4))
             throw new IllegalArgumentException("Invalid CVV");
         this.cvv = cvv;
     }
 
     private static String validateCard(String number){
         Objects.requireNonNull(number);
-        String digits = number.replaceAll("\\s+", "");
-        if(digits.length() < 12 || !luhnValid(digits))
-            throw new IllegalArgumentException("Invalid card number");
+        String digits = PaymentValidation.cardDigits(number);
+        if(digits == null) throw new IllegalArgumentException("Invalid card number");
         return digits;
     }
 
-    private static boolean luhnValid(String n){
+    /** Reference Luhn check over an already-stripped number; kept to cross-check the fast paths. */
+    static boolean luhnValid(String n){
         int sum = 0; boolean alt = false;
         for(int i = n.length()-1; i >=0; i--){
             int d = n.charAt(i)-'0';
@@ -175,24 +3349,22 @@ final class CreditCardPayment extends Payment {
         return sum % 10 == 0;
     }
 
-    @Override public PaymentResult process(IdempotencyKey key, PaymentProcessor.Context ctx){
-        // Idempotency handled in processor/repo before delegate is called; still simulate provider
-        if(providerHiccup()) return new PaymentResult(transactionId, Status.FAILED, 0.0,
-                "Bank authorization timeout");
-
-        double discounted = ctx.promo.apply(amount);
-        double fee = ctx.fees.apply(discounted, this);
-        double charged = round2(discounted + fee);
-
-        ctx.persistSuccess(this, charged, fee, amount - discounted, key);
-        ctx.notify(this, charged, fee, amount - discounted, Status.SUCCESS);
-        return new PaymentResult(transactionId, Status.SUCCESS, charged, "Authorized");
+    @Override public CompletableFuture<PaymentResult> processAsync(IdempotencyKey key, PaymentProcessor.Context ctx){
+        // Idempotency handled in processor/repo before delegate is called
+        return chargeThroughProvider(key, ctx, "Authorized");
     }
 
-    @Override public RefundResult refund(double amt, PaymentProcessor.Context ctx){
+    @Override public RefundResult refund(Money amt, PaymentProcessor.Context ctx){
         return ctx.performRefund(transactionId, amt, userId);
     }
 
+    /** The leading eight digits, for {@link BinTable} lookups; the full number stays private. */
+    int bin8(){
+        int v = 0;
+        for(int i = 0; i < BinTable.DIGITS; i++) v = v * 10 + (cardNumber.charAt(i) - '0');
+        return v;
+    }
+
     @Override public String getMaskedInfo(){
         String last4 = cardNumber.substring(cardNumber.length()-4);
         return "**** **** **** " + last4;
@@ -203,27 +3375,18 @@ final class CreditCardPayment extends Payment {
 
 final class UPIPayment extends Payment {
     private final String upiId; // never expose raw
-    private static final String UPI_REGEX = "^[a-zA-Z0-9.\\-_]+@[a-zA-Z]+$";
-
     UPIPayment(String transactionId, double amount, Currency currency, String userId, String upiId){
         super(transactionId, amount, currency, userId);
-        if(upiId == null || !upiId.matches(UPI_REGEX))
+        if(!PaymentValidation.upiId(upiId))
             throw new IllegalArgumentException("Invalid UPI Id");
         this.upiId = upiId;
     }
 
-    @Override public PaymentResult process(IdempotencyKey key, PaymentProcessor.Context ctx){
-        if(providerHiccup()) return new PaymentResult(transactionId, Status.FAILED, 0.0,
-                "UPI provider error");
-        double discounted = ctx.promo.apply(amount);
-        double fee = ctx.fees.apply(discounted, this);
-        double charged = round2(discounted + fee);
-        ctx.persistSuccess(this, charged, fee, amount - discounted, key);
-        ctx.notify(this, charged, fee, amount - discounted, Status.SUCCESS);
-        return new PaymentResult(transactionId, Status.SUCCESS, charged, "Collected via UPI");
+    @Override public CompletableFuture<PaymentResult> processAsync(IdempotencyKey key, PaymentProcessor.Context ctx){
+        return chargeThroughProvider(key, ctx, "Collected via UPI");
     }
 
-    @Override public RefundResult refund(double amt, PaymentProcessor.Context ctx){
+    @Override public RefundResult refund(Money amt, PaymentProcessor.Context ctx){
         return ctx.performRefund(transactionId, amt, userId);
     }
 
@@ -238,98 +3401,465 @@ final class UPIPayment extends Payment {
 
 final class WalletPayment extends Payment {
     private final String walletId;
-    private static final Map<String, Double> WALLET_BALANCES = new ConcurrentHashMap<>();
+    private static final WalletLedger LEDGER = new WalletLedger();
+
+    /** What an authorization was priced at; capture charges exactly this. */
+    record Price(long charge, long fee) {}
+
+    public static void topUp(String walletId, Money amount){
+        LEDGER.credit(walletId, amount.minor(), "topup");
+    }
+
+    static WalletLedger ledger(){ return LEDGER; }
+
+    static { LEDGER.startExpiry(Duration.ofSeconds(1)); }
+
+    WalletPayment(String transactionId, double amount, Currency currency, String userId, String walletId){
+        super(transactionId, amount, currency, userId);
+        if(!PaymentValidation.walletId(walletId)) throw new IllegalArgumentException("Invalid walletId");
+        this.walletId = walletId;
+    }
+
+    /**
+     * The balance is our own ledger, so by default the debit needs no provider call and only recording
+     * may block. A provider registered for wallets (the wallet service) is asked first.
+     */
+    @Override public CompletableFuture<PaymentResult> processAsync(IdempotencyKey key, PaymentProcessor.Context ctx){
+        long discounted = ctx.promo.apply(amount, this);
+        long fee = ctx.fees.apply(discounted, this);
+        long charge = discounted + fee;
+        var service = ctx.providerIfAny(this);
+        var call = service == null ? CompletableFuture.completedFuture(ProviderResponse.approved(transactionId)) : service.authorize(this, charge, key);
+        return ctx.settle(call, resp -> {
+            if(!resp.approved()) return failed(resp.message());
+            if(!LEDGER.debit(walletId, charge, transactionId)) return failed("Insufficient wallet balance");
+            try {
+                ctx.persistSuccess(this, charge, fee, amount - discounted, key);
+            } catch(RuntimeException e){
+                LEDGER.credit(walletId, charge, "reversal " + transactionId); // no record, so hand the funds back
+                throw e;
+            }
+            ctx.notify(this, charge, fee, amount - discounted, Status.SUCCESS);
+            return new PaymentResult(transactionId, Status.SUCCESS, Money.ofMinor(charge, currency), "Wallet charged");
+        });
+    }
+
+    /** Prices the payment for an authorization with the context's rules. */
+    Price price(PaymentProcessor.Context ctx){
+        long discounted = ctx.promo.apply(amount, this);
+        long fee = ctx.fees.apply(discounted, this);
+        return new Price(discounted + fee, fee);
+    }
+
+    /** Holds the priced charge; nothing is recorded until {@link #capture}. */
+    PaymentResult hold(Price price, Duration holdFor, Runnable onExpire){
+        if(!LEDGER.hold(walletId, transactionId, price.charge(), holdFor, onExpire)) return failed("Insufficient wallet balance");
+        return new PaymentResult(transactionId, Status.PENDING, Money.ofMinor(price.charge(), currency), "Funds held");
+    }
+
+    /** Captures the held charge at the price it was authorized with. */
+    PaymentResult capture(IdempotencyKey key, PaymentProcessor.Context ctx, Price price){
+        long charge = price.charge(), fee = price.fee(), discount = amount + fee - charge;
+        if(!LEDGER.capture(transactionId, charge)) return failed("Authorization expired or released");
+        try {
+            ctx.persistSuccess(this, charge, fee, discount, key);
+        } catch(RuntimeException e){
+            LEDGER.credit(walletId, charge, "reversal " + transactionId);
+            throw e;
+        }
+        ctx.notify(this, charge, fee, discount, Status.SUCCESS);
+        return new PaymentResult(transactionId, Status.SUCCESS, Money.ofMinor(charge, currency), "Wallet charged");
+    }
+
+    boolean release(){ return LEDGER.release(transactionId); }
+
+    @Override public RefundResult refund(Money amt, PaymentProcessor.Context ctx){
+        RefundResult res = ctx.performRefund(transactionId, amt, userId);
+        if(res.status() == Status.SUCCESS){
+            LEDGER.credit(walletId, res.refundedAmount().minor(), res.refundId());
+        }
+        return res;
+    }
+
+    @Override public String getMaskedInfo(){
+        String tail = walletId.length() <= 4 ? walletId : walletId.substring(walletId.length()-4);
+        return "WALLET-****" + tail;
+    }
+
+    @Override public String methodName(){ return "Wallet"; }
+}
+
+// ======= Payment Processor =======
+final class PaymentProcessor {
+    static final class Context {
+        final TransactionRepository repo; final FeeStrategy fees; final Promo promo; final Notifier notifier;
+        final DoubleEntryLedger books;
+        final long ruleVersion;
+        private final Function<Payment, PaymentProvider> providers;
+        private final Executor blocking; // null: the caller waits, and runs every step itself
+        private final PaymentScope scope; // non-null on a thread-per-task caller: side steps fork into it
+        Context(TransactionRepository r, RuleSet rules, Notifier n, DoubleEntryLedger books,
+                Function<Payment, PaymentProvider> providers, Executor blocking, PaymentScope scope){
+            repo=r; fees=rules.fees(); promo=rules.promo(); ruleVersion=rules.version(); notifier=n; this.books=books;
+            this.providers=providers; this.blocking=blocking; this.scope=scope;
+        }
+        /** Steps that only need the transaction saved: forked into the scope if there is one, else run now. */
+        private void afterSave(Runnable step){
+            if(scope == null) step.run(); else scope.fork(step);
+        }
+        PaymentProvider provider(Payment p){
+            var provider = providers.apply(p);
+            if(provider == null) throw new IllegalStateException("No provider for " + p.methodName());
+            return provider;
+        }
+        /** The provider for {@code p}'s rail, or null where the rail needs none. */
+        PaymentProvider providerIfAny(Payment p){ return providers.apply(p); }
+        /** Runs {@code step} on the provider's answer: on the blocking executor, or inline for a synchronous caller. */
+        <T> CompletableFuture<PaymentResult> settle(CompletableFuture<T> call, Function<T, PaymentResult> step){
+            if(blocking == null) return CompletableFuture.completedFuture(step.apply(join(call)));
+            return call.thenApplyAsync(step, blocking);
+        }
+        void persistSuccess(Payment p, long charged, long fee, long discount, IdempotencyKey key){
+            var tx = new Transaction(p.transactionId, p.userId, p.methodName(), p.currency,
+                    p.amount, charged, p.getMaskedInfo(), Status.SUCCESS, Instant.now(), key, ruleVersion);
+            repo.save(tx);
+            afterSave(() -> books.recordCharge(p.transactionId, p.methodName(), p.currency, p.amount, charged, fee, discount));
+        }
+        void notify(Payment p, long charged, long fee, long discount, Status status){
+            var c = p.currency;
+            var receipt = new Receipt(p.transactionId, p.userId, p.methodName(), p.getMaskedInfo(),
+                    Money.ofMinor(p.amount, c), Money.ofMinor(charged, c), Money.ofMinor(fee, c),
+                    Money.ofMinor(discount, c), status, Instant.now());
+            afterSave(() -> notifier.notify(p.userId, receipt));
+        }
+        RefundResult performRefund(String transactionId, Money amount, String userId){
+            var zero = Money.zero(amount.currency());
+            if(!amount.isPositive()) return new RefundResult("", Status.FAILED, zero, "Refund must be > 0");
+            var txOpt = repo.findById(transactionId);
+            if(txOpt.isEmpty()) return new RefundResult("", Status.FAILED, zero, "Txn not found");
+            var tx = txOpt.get();
+            if(tx.currency != amount.currency()) return new RefundResult("", Status.FAILED, zero, "Currency mismatch");
+            long refundedTotal = repo.reserveRefund(tx, amount.minor());
+            if(refundedTotal < 0) return new RefundResult("", Status.FAILED, zero, "Refund exceeds remaining");
+            String refundId = "R-" + transactionId + "-" + refundedTotal; // the running total tells partial refunds apart
+            afterSave(() -> books.recordRefund(refundId, tx.methodName, tx.currency, amount.minor()));
+            var receipt = new Receipt(transactionId, userId, tx.methodName, tx.maskedInfo,
+                    Money.ofMinor(tx.originalAmount, tx.currency), amount.negate(), Money.zero(tx.currency),
+                    Money.zero(tx.currency), Status.SUCCESS, Instant.now());
+            afterSave(() -> notifier.notify(userId, receipt));
+            return new RefundResult(refundId, Status.SUCCESS, amount, "Refunded");
+        }
+    }
+
+    private final TransactionRepository repo; private final RuleEngine rules; private final Notifier notifier;
+    private final DoubleEntryLedger books;
+    private final Map<Class<? extends Payment>, PaymentProvider> providers = new ConcurrentHashMap<>(Map.of(
+            CreditCardPayment.class, new SimulatedProvider(ProviderProfile.instant(0.05, "Bank authorization timeout")),
+            UPIPayment.class, new SimulatedProvider(ProviderProfile.instant(0.05, "UPI provider error"))));
+    private volatile Executor blocking = PaymentProcessor::runBlocking;
+    private volatile ExecutorService perTask; // set by usingVirtualThreads
+    // Idempotency keys claimed by a payment that has not finished; duplicates join its future.
+    private final ConcurrentMap<String, CompletableFuture<PaymentResult>> inFlight = new ConcurrentHashMap<>();
+    // Wallet payments holding funds until capture or release, by transaction id.
+    private record Authorization(WalletPayment payment, IdempotencyKey key, Context ctx, WalletPayment.Price price) {
+        PaymentResult pending(){
+            return new PaymentResult(payment.transactionId, Status.PENDING, Money.ofMinor(price.charge(), payment.currency), "Funds held");
+        }
+    }
+    private final ConcurrentMap<String, Authorization> authorizations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Authorization> heldByKey = new ConcurrentHashMap<>(); // idempotency key -> open authorization
+    private final LongAdder sideStepFailures = new LongAdder();
+    private volatile Consumer<Throwable> onSideStepFailure = t -> {};
+    public PaymentProcessor(TransactionRepository repo, RuleEngine rules, Notifier notifier, DoubleEntryLedger books){
+        this.repo = repo; this.rules = rules; this.notifier = notifier; this.books = books;
+    }
+    public PaymentProcessor(TransactionRepository repo, RuleEngine rules, Notifier notifier){
+        this(repo, rules, notifier, new DoubleEntryLedger());
+    }
+    public PaymentProcessor(TransactionRepository repo, FeeStrategy fees, Promo promo, Notifier notifier){
+        this(repo, RuleEngine.fixed(fees, promo), notifier);
+    }
+
+    /** Each call prices with the rule set current when it starts, even if a reload lands mid-payment. */
+    private Context newContext(){ return newContext(null, null); }
+    private Context newContext(Executor blocking, PaymentScope scope){
+        return new Context(repo, rules.current(), notifier, books, this::provider, blocking, scope);
+    }
+
+    /** Routes payments of {@code type} to {@code provider}. */
+    public PaymentProcessor usingProvider(Class<? extends Payment> type, PaymentProvider provider){
+        providers.put(type, Objects.requireNonNull(provider));
+        return this;
+    }
+
+    /** Where {@link #executeAsync} runs persistence and notification, which may block. */
+    public PaymentProcessor usingExecutor(Executor blocking){
+        this.blocking = Objects.requireNonNull(blocking);
+        return this;
+    }
+
+    /** Called with each forked ledger posting or notification that failed after its payment or refund committed. */
+    public PaymentProcessor onSideStepFailure(Consumer<Throwable> listener){
+        onSideStepFailure = Objects.requireNonNull(listener);
+        return this;
+    }
+
+    /** Forked side steps that failed; the payments and refunds they followed still stand. */
+    public long sideStepFailures(){ return sideStepFailures.sum(); }
+
+    private PaymentProvider provider(Payment p){ return providers.get(p.getClass()); }
+
+    // Default home for blocking steps of async payments: cached daemon threads, grown on demand.
+    private static final ExecutorService BLOCKING = Executors.newCachedThreadPool(r -> {
+        var t = new Thread(r, "payment-io"); t.setDaemon(true); return t;
+    });
+    private static void runBlocking(Runnable task){ BLOCKING.execute(task); }
+
+    DoubleEntryLedger books(){ return books; }
+
+    /** Breaker and bulkhead state of every rail whose provider is a {@link GuardedProvider}, retried or not. */
+    public List<ProviderHealth> providerHealth(){
+        return providers.values().stream().map(p -> p instanceof RetryingProvider r ? r.delegate() : p)
+                .filter(GuardedProvider.class::isInstance).map(p -> ((GuardedProvider) p).health()).toList();
+    }
+
+    /**
+     * Charges {@code payment} at most once per key. The first caller claims the key; concurrent
+     * duplicates wait for and return that caller's result. A completed charge is replayed from the
+     * repository; a failed attempt releases the key so a later retry can charge.
+     */
+    public PaymentResult execute(Payment payment, IdempotencyKey key){ return execute(payment, key, null); }
+
+    private PaymentResult execute(Payment payment, IdempotencyKey key, PaymentScope scope){
+        if(key == null) return afterSideSteps(charge(payment, null, scope), scope);
+        return claimed(key, () -> {
+            var held = openHold(key);
+            return held != null ? held : afterSideSteps(charge(payment, key, scope), scope);
+        });
+    }
+
+    /** The pending answer of an open authorization under {@code key}, which a repeat must not charge past; else null. */
+    private PaymentResult openHold(IdempotencyKey key){
+        var open = heldByKey.get(key.value());
+        return open == null ? null : open.pending();
+    }
+
+    /** Runs {@code body} as the only holder of {@code key}, unless a completed charge already answers it. */
+    private PaymentResult claimed(IdempotencyKey key, java.util.function.Supplier<PaymentResult> body){
+        var replay = replay(key);
+        if(replay != null) return replay;
+
+        var claim = new CompletableFuture<PaymentResult>();
+        var owner = inFlight.putIfAbsent(key.value(), claim);
+        if(owner != null) return join(owner);
+        try {
+            // The previous owner may have persisted and released the key between our lookup and claim.
+            var result = replay(key);
+            if(result == null) result = body.get();
+            claim.complete(result);
+            return result;
+        } catch(RuntimeException | Error e){
+            claim.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key.value(), claim);
+        }
+    }
+
+    /**
+     * Auth-only: prices the wallet payment with the current rules and holds the charge for
+     * {@code holdFor}. The payment is recorded only by {@link #capture}; {@link #release} or expiry
+     * returns the funds without touching the repository. The key is claimed as {@link #execute}
+     * claims it, and while its hold is open a repeat answers with that hold instead of placing another.
+     * Promo uses priced into the hold are committed at capture and handed back on release or expiry.
+     */
+    public PaymentResult authorize(WalletPayment payment, IdempotencyKey key, Duration holdFor){
+        if(key == null) return hold(payment, null, holdFor);
+        return claimed(key, () -> {
+            var held = openHold(key);
+            return held != null ? held : hold(payment, key, holdFor);
+        });
+    }
+
+    private PaymentResult hold(WalletPayment payment, IdempotencyKey key, Duration holdFor){
+        var ctx = newContext();
+        // Priced before the entry is published, so a capture on any thread sees the price with it.
+        var auth = new Authorization(payment, key, ctx, payment.price(ctx));
+        if(authorizations.putIfAbsent(payment.transactionId, auth) != null){
+            ctx.promo.complete(payment, false);
+            return payment.failed("Already authorized");
+        }
+        if(key != null) heldByKey.put(key.value(), auth);
+        Runnable unused = () -> { if(take(auth)) settle(auth, false); };
+        PaymentResult result = null;
+        try {
+            result = payment.hold(auth.price(), holdFor, unused);
+            return result;
+        } finally {
+            if(result == null || result.status() != Status.PENDING) unused.run();
+        }
+    }
+
+    /**
+     * Takes an open authorization for capture, release or expiry; when they race for one hold, only
+     * one of them gets it, and that one must {@link #settle} it.
+     */
+    private boolean take(Authorization auth){ return authorizations.remove(auth.payment().transactionId, auth); }
+
+    /**
+     * Frees the key and commits or returns the promo uses. Until then a repeat authorize still gets
+     * the hold back, so one arriving mid-capture cannot place a second hold before the record exists.
+     */
+    private void settle(Authorization auth, boolean charged){
+        if(auth.key() != null) heldByKey.remove(auth.key().value(), auth);
+        auth.ctx().promo.complete(auth.payment(), charged);
+    }
+
+    /** Charges a held authorization at the price it was authorized with. */
+    public PaymentResult capture(String transactionId){
+        var auth = authorizations.get(transactionId);
+        if(auth == null || !take(auth))
+            return new PaymentResult(transactionId, Status.FAILED, Money.zero(Currency.INR), "No open authorization");
+        boolean charged = false;
+        try {
+            var result = auth.payment().capture(auth.key(), auth.ctx(), auth.price());
+            charged = result.status() == Status.SUCCESS;
+            return result;
+        } finally {
+            settle(auth, charged);
+        }
+    }
+
+    /** Returns held funds; false if there is no open authorization for {@code transactionId}. */
+    public boolean release(String transactionId){
+        var auth = authorizations.get(transactionId);
+        if(auth == null || !take(auth)) return false;
+        try { return auth.payment().release(); } finally { settle(auth, false); }
+    }
+
+    /**
+     * {@link #execute} without blocking the caller: the provider call is awaited through its future,
+     * and persistence and notification run on the executor. Duplicates of an in-flight key share its
+     * future; a completed key replays.
+     */
+    public CompletableFuture<PaymentResult> executeAsync(Payment payment, IdempotencyKey key){
+        if(key == null) return chargeAsync(payment, null);
+        var replay = replay(key);
+        if(replay != null) return CompletableFuture.completedFuture(replay);
+
+        var claim = new CompletableFuture<PaymentResult>();
+        var owner = inFlight.putIfAbsent(key.value(), claim);
+        if(owner != null) return owner;
+        CompletableFuture<PaymentResult> attempt;
+        try {
+            var result = replay(key);
+            if(result == null) result = openHold(key);
+            attempt = result != null ? CompletableFuture.completedFuture(result) : chargeAsync(payment, key);
+        } catch(RuntimeException | Error e){
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        attempt.whenComplete((result, error) -> {
+            if(error != null) claim.completeExceptionally(error instanceof CompletionException ce && ce.getCause() != null ? ce.getCause() : error);
+            else claim.complete(result);
+            inFlight.remove(key.value(), claim);
+        });
+        return claim;
+    }
 
-    public static void topUp(String walletId, double amount){
-        WALLET_BALANCES.merge(walletId, amount, Double::sum);
+    /** Every failure, even one thrown before the provider is reached, arrives through the future. */
+    private CompletableFuture<PaymentResult> chargeAsync(Payment payment, IdempotencyKey key){
+        var ctx = newContext(blocking, null);
+        final CompletableFuture<PaymentResult> attempt;
+        try {
+            attempt = payment.processAsync(key, ctx);
+        } catch(RuntimeException | Error e){
+            ctx.promo.complete(payment, false);
+            return CompletableFuture.failedFuture(e);
+        }
+        return attempt.whenComplete((result, error) -> ctx.promo.complete(payment, error == null && result.status() == Status.SUCCESS));
     }
 
-    WalletPayment(String transactionId, double amount, Currency currency, String userId, String walletId){
-        super(transactionId, amount, currency, userId);
-        if(walletId == null || walletId.isBlank()) throw new IllegalArgumentException("Invalid walletId");
-        this.walletId = walletId;
+    /** Runs one charge attempt and tells the promo whether it went through. */
+    private PaymentResult charge(Payment payment, IdempotencyKey key, PaymentScope scope){
+        var ctx = newContext(null, scope);
+        boolean charged = false;
+        try {
+            var result = payment.process(key, ctx);
+            charged = result.status() == Status.SUCCESS;
+            return result;
+        } finally {
+            ctx.promo.complete(payment, charged);
+        }
     }
 
-    @Override public PaymentResult process(IdempotencyKey key, PaymentProcessor.Context ctx){
-        double balance = WALLET_BALANCES.getOrDefault(walletId, 0.0);
-        double discounted = ctx.promo.apply(amount);
-        double fee = ctx.fees.apply(discounted, this);
-        double charge = round2(discounted + fee);
-        if(balance < charge) return new PaymentResult(transactionId, Status.FAILED, 0.0,
-                "Insufficient wallet balance");
-        WALLET_BALANCES.put(walletId, round2(balance - charge));
-        ctx.persistSuccess(this, charge, fee, amount - discounted, key);
-        ctx.notify(this, charge, fee, amount - discounted, Status.SUCCESS);
-        return new PaymentResult(transactionId, Status.SUCCESS, charge, "Wallet charged");
+    private PaymentResult replay(IdempotencyKey key){
+        var existing = repo.findByIdempotency(key);
+        if(existing.isEmpty()) return null;
+        var ex = existing.get();
+        return new PaymentResult(ex.id, ex.status, Money.ofMinor(ex.capturedAmount, ex.currency), "Idempotent replay");
     }
 
-    @Override public RefundResult refund(double amt, PaymentProcessor.Context ctx){
-        RefundResult res = ctx.performRefund(transactionId, amt, userId);
-        if(res.status() == Status.SUCCESS){
-            WALLET_BALANCES.merge(walletId, res.refundedAmount(), Double::sum);
+    static <T> T join(CompletableFuture<T> owner){
+        try {
+            return owner.join();
+        } catch(CompletionException e){
+            if(e.getCause() instanceof RuntimeException re) throw re;
+            if(e.getCause() instanceof Error err) throw err;
+            throw e;
         }
-        return res;
     }
 
-    @Override public String getMaskedInfo(){
-        String tail = walletId.length() <= 4 ? walletId : walletId.substring(walletId.length()-4);
-        return "WALLET-****" + tail;
+    public RefundResult refund(String transactionId, Money amt){
+        return newContext().performRefund(transactionId, amt, "");
     }
 
-    @Override public String methodName(){ return "Wallet"; }
-}
+    /**
+     * Thread-per-task mode: each {@link #submit} or {@link #submitRefund} runs on its own virtual
+     * thread (platform thread before Java 21), blocking freely on the provider, while the ledger
+     * posting and notification fork into a {@link PaymentScope} that finishes before the key is freed;
+     * a failed one is reported through {@link #onSideStepFailure}, not as the call's result.
+     */
+    public PaymentProcessor usingVirtualThreads(){
+        perTask = PaymentThreads.perTask("payment");
+        return this;
+    }
 
-// ======= Payment Processor =======
-final class PaymentProcessor {
-    static final class Context {
-        final TransactionRepository repo; final FeeStrategy fees; final Promo promo; final Notifier notifier;
-        Context(TransactionRepository r, FeeStrategy f, Promo p, Notifier n){ repo=r; fees=f; promo=p; notifier=n; }
-        void persistSuccess(Payment p, double charged, double fee, double discount, IdempotencyKey key){
-            var tx = new Transaction(p.transactionId, p.userId, p.methodName(), p.currency,
-                    p.amount, charged, p.getMaskedInfo(), Status.SUCCESS, Instant.now(), key);
-            repo.save(tx);
-        }
-        void notify(Payment p, double charged, double fee, double discount, Status status){
-            var receipt = new Receipt(p.transactionId, p.userId, p.methodName(), p.getMaskedInfo(),
-                    p.amount, charged, fee, discount, status, Instant.now());
-            notifier.notify(p.userId, receipt);
-        }
-        RefundResult performRefund(String transactionId, double amt, String userId){
-            if(amt <= 0) return new RefundResult("", Status.FAILED, 0.0, "Refund must be > 0");
-            var txOpt = repo.findById(transactionId);
-            if(txOpt.isEmpty()) return new RefundResult("", Status.FAILED, 0.0, "Txn not found");
-            var tx = txOpt.get();
-            double remaining = round2(tx.capturedAmount - tx.totalRefunded);
-            if(amt > remaining) return new RefundResult("", Status.FAILED, 0.0, "Refund exceeds remaining");
-            tx.totalRefunded = round2(tx.totalRefunded + amt);
-            String refundId = "R-" + transactionId;
-            notifier.notify(userId, new Receipt(transactionId, userId, tx.methodName, tx.maskedInfo,
-                    tx.originalAmount, -amt, 0.0, 0.0, Status.SUCCESS, Instant.now()));
-            return new RefundResult(refundId, Status.SUCCESS, amt, "Refunded");
-        }
-        private static double round2(double v){ return Math.round(v * 100.0)/100.0; }
+    public Future<PaymentResult> submit(Payment payment, IdempotencyKey key){
+        return onOwnThread(scope -> execute(payment, key, scope));
     }
 
-    private final TransactionRepository repo; private final FeeStrategy fees; private final Promo promo; private final Notifier notifier;
-    public PaymentProcessor(TransactionRepository repo, FeeStrategy fees, Promo promo, Notifier notifier){
-        this.repo = repo; this.fees = fees; this.promo = promo; this.notifier = notifier;
+    public Future<RefundResult> submitRefund(String transactionId, Money amt){
+        return onOwnThread(scope -> afterSideSteps(newContext(null, scope).performRefund(transactionId, amt, ""), scope));
     }
 
-    public PaymentResult execute(Payment payment, IdempotencyKey key){
-        if(key != null){
-            var existing = repo.findByIdempotency(key);
-            if(existing.isPresent()){
-                var ex = existing.get();
-                return new PaymentResult(ex.id, ex.status, ex.capturedAmount, "Idempotent replay");
+    private <T> Future<T> onOwnThread(Function<PaymentScope, T> call){
+        var exec = perTask;
+        if(exec == null) throw new IllegalStateException("Call usingVirtualThreads() first");
+        return exec.submit(() -> {
+            try(var scope = new PaymentScope(exec, false)){ // side steps of a committed save must not cancel each other
+                return call.apply(scope);
             }
-        }
-        var ctx = new Context(repo, fees, promo, notifier);
-        return payment.process(key, ctx);
+        });
     }
 
-    public RefundResult refund(String transactionId, double amt){
-        var ctx = new Context(repo, fees, promo, notifier);
-        return ctx.performRefund(transactionId, amt, "");
+    /**
+     * Waits for the steps forked into {@code scope}, so they land before {@code result} is published
+     * or its key freed. They follow a committed save, so each failed one is reported, not thrown.
+     */
+    private <T> T afterSideSteps(T result, PaymentScope scope){
+        if(scope == null) return result;
+        List<Throwable> failed;
+        try {
+            failed = scope.join().failures();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt(); // closing the scope cancels what is left
+            failed = List.of(e);
+        }
+        for(var failure : failed){
+            sideStepFailures.increment();
+            onSideStepFailure.accept(failure);
+        }
+        return result;
     }
 }
 
@@ -348,19 +3878,13 @@ final class PaymentFactory {
     }
 }
 
-// ======= Provider Failure Simulation =======
-final class ProviderRandom {
-    private static final Random R = new Random(42);
-    static boolean maybeFail(){ return R.nextDouble() < 0.05; } // 5% hiccup
-}
-static boolean providerHiccup(){ return ProviderRandom.maybeFail(); }
-
 // ======= Demo, Tests & CLI =======
 public class PaymentGatewayDemo {
     public static void main(String[] args){
         if(args.length>0 && args[0].equals("test")) { TestRunner.runAll(); return; }
         if(args.length>0 && args[0].equals("demo")) { demo(); return; }
-        System.out.println("Usage: java PaymentGatewayDemo [demo|test]");
+        if(args.length>0 && args[0].equals("bench")) { Benchmarks.runAll(Arrays.copyOfRange(args, 1, args.length)); return; }
+        System.out.println("Usage: java PaymentGatewayDemo [demo|test|bench [store|inflight|hedge <count>]]");
     }
 
     static void demo(){
@@ -384,13 +3908,13 @@ public class PaymentGatewayDemo {
                         req.details().get("walletId")));
 
         // Wallet top-up and run the sample stories
-        WalletPayment.topUp("wal-001", 5000);
+        WalletPayment.topUp("wal-001", Money.of(5000, Currency.INR));
 
         // 1) Card payment ₹2000
         var cardReq = new PaymentRequest("card", 2000, Currency.INR, Map.of(
                 "name","Ayush", "cardNumber","4111111111111111", "expiry","12/2030", "cvv","123"), "ayush");
         var r1 = processor.execute(factory.create(cardReq), new IdempotencyKey("k1"));
-        System.out.println("Payment " + r1.status() + " txn="+r1.transactionId()+" charged=\u20B9" + r1.chargedAmount());
+        System.out.println("Payment " + r1.status() + " txn="+r1.transactionId()+" charged=" + r1.chargedAmount());
 
         // 2) UPI invalid
         try {
@@ -402,22 +3926,22 @@ public class PaymentGatewayDemo {
         var walletReq = new PaymentRequest("wallet", 6000, Currency.INR, Map.of("walletId","wal-001"), "ayush");
         var r3 = processor.execute(factory.create(walletReq), new IdempotencyKey("k3"));
         System.out.println("Wallet attempt: " + r3.message());
-        WalletPayment.topUp("wal-001", 5000);
+        WalletPayment.topUp("wal-001", Money.of(5000, Currency.INR));
         r3 = processor.execute(factory.create(walletReq), new IdempotencyKey("k3")); // same key → idempotent
         System.out.println("Wallet attempt after topup (idempotent): " + r3.message());
 
         // 4) Partial refund 500 of first txn
-        var refund = processor.refund(r1.transactionId(), 500);
-        System.out.println("Refund " + refund.status() + " refundId=" + refund.refundId() + " amount=\u20B9" + refund.refundedAmount());
+        var refund = processor.refund(r1.transactionId(), Money.of(500, Currency.INR));
+        System.out.println("Refund " + refund.status() + " refundId=" + refund.refundId() + " amount=" + refund.refundedAmount());
 
         // 5) Over-refund should fail
-        var refund2 = processor.refund(r1.transactionId(), 2000);
+        var refund2 = processor.refund(r1.transactionId(), Money.of(2000, Currency.INR));
         System.out.println("Second refund: " + refund2.message());
 
         // 6) History
-        System.out.println("History for ayush:");
-        for(var tx : repo.findByUser("ayush")){
-            System.out.println("["+tx.id+" " + tx.status + " \u20B9" + tx.capturedAmount + "] " + tx.methodName + "(" + tx.maskedInfo + ")");
+        System.out.println("History for ayush (latest 20):");
+        for(var tx : repo.findByUser("ayush", null, 20).items()){
+            System.out.println("["+tx.id+" " + tx.status + " " + Money.format(tx.capturedAmount, tx.currency) + "] " + tx.methodName + "(" + tx.maskedInfo + ")");
         }
     }
 
@@ -433,6 +3957,33 @@ final class TestRunner {
         try { testWalletBalanceAndRefunds(); pass++; } catch(Throwable t){ fail("testWalletBalanceAndRefunds", t); }
         try { testPolymorphicProcessing(); pass++; } catch(Throwable t){ fail("testPolymorphicProcessing", t); }
         try { testIdempotency(); pass++; } catch(Throwable t){ fail("testIdempotency", t); }
+        try { testMoneyRounding(); pass++; } catch(Throwable t){ fail("testMoneyRounding", t); }
+        try { testConcurrentRefundsNeverOverRefund(); pass++; } catch(Throwable t){ fail("testConcurrentRefundsNeverOverRefund", t); }
+        try { testConcurrentUserHistory(); pass++; } catch(Throwable t){ fail("testConcurrentUserHistory", t); }
+        try { testHistoryPaging(); pass++; } catch(Throwable t){ fail("testHistoryPaging", t); }
+        try { testTimeRangeQuery(); pass++; } catch(Throwable t){ fail("testTimeRangeQuery", t); }
+        try { testWalGroupCommitAndRecovery(); pass++; } catch(Throwable t){ fail("testWalGroupCommitAndRecovery", t); }
+        try { testSegmentedStoreSnapshotRecovery(); pass++; } catch(Throwable t){ fail("testSegmentedStoreSnapshotRecovery", t); }
+        try { testWalFailedBatchIsRolledBack(); pass++; } catch(Throwable t){ fail("testWalFailedBatchIsRolledBack", t); }
+        try { testOffHeapRepository(); pass++; } catch(Throwable t){ fail("testOffHeapRepository", t); }
+        try { testConcurrentIdempotentRetries(); pass++; } catch(Throwable t){ fail("testConcurrentIdempotentRetries", t); }
+        try { testIdempotencyRetention(); pass++; } catch(Throwable t){ fail("testIdempotencyRetention", t); }
+        try { testIdempotencyBloomFilter(); pass++; } catch(Throwable t){ fail("testIdempotencyBloomFilter", t); }
+        try { testTieredFeesWithoutAllocation(); pass++; } catch(Throwable t){ fail("testTieredFeesWithoutAllocation", t); }
+        try { testRuleReloadKeepsInFlightVersion(); pass++; } catch(Throwable t){ fail("testRuleReloadKeepsInFlightVersion", t); }
+        try { testPromoChainStackingCapsAndLimits(); pass++; } catch(Throwable t){ fail("testPromoChainStackingCapsAndLimits", t); }
+        try { testPaymentValidation(); pass++; } catch(Throwable t){ fail("testPaymentValidation", t); }
+        try { testBatchLuhnMatchesScalar(); pass++; } catch(Throwable t){ fail("testBatchLuhnMatchesScalar", t); }
+        try { testBinTableLookupAndFees(); pass++; } catch(Throwable t){ fail("testBinTableLookupAndFees", t); }
+        try { testWalletLedgerConcurrentDebits(); pass++; } catch(Throwable t){ fail("testWalletLedgerConcurrentDebits", t); }
+        try { testWalletHoldsCaptureAndExpiry(); pass++; } catch(Throwable t){ fail("testWalletHoldsCaptureAndExpiry", t); }
+        try { testDoubleEntryLedger(); pass++; } catch(Throwable t){ fail("testDoubleEntryLedger", t); }
+        try { testLedgerFailedBatchIsRolledBack(); pass++; } catch(Throwable t){ fail("testLedgerFailedBatchIsRolledBack", t); }
+        try { testExecuteAsyncKeepsSlowCallsInFlight(); pass++; } catch(Throwable t){ fail("testExecuteAsyncKeepsSlowCallsInFlight", t); }
+        try { testThreadPerTaskInFlight(); pass++; } catch(Throwable t){ fail("testThreadPerTaskInFlight", t); }
+        try { testProviderSimulatorProfiles(); pass++; } catch(Throwable t){ fail("testProviderSimulatorProfiles", t); }
+        try { testCircuitBreakerAndBulkhead(); pass++; } catch(Throwable t){ fail("testCircuitBreakerAndBulkhead", t); }
+        try { testRetriesAndHedging(); pass++; } catch(Throwable t){ fail("testRetriesAndHedging", t); }
         System.out.println("TESTS: " + pass + " passed, " + fail + " failed");
     }
 
@@ -445,7 +3996,7 @@ final class TestRunner {
         var res = proc.execute(factory.create(new PaymentRequest("card", 1000, Currency.INR, Map.of(), "u1")), new IdempotencyKey("kT1"));
         assert res.status()==Status.SUCCESS : "Expected success";
         // fee 2% on 1000 = 20; charge 1020
-        assert Math.abs(res.chargedAmount()-1020.0) < 0.01 : "Wrong charge";
+        assert res.chargedAmount().equals(Money.of(1020, Currency.INR)) : "Wrong charge";
     }
 
     static void testUPIValidation(){
@@ -465,13 +4016,13 @@ final class TestRunner {
         var repo = new InMemoryTransactionRepository();
         var fees = new RegistryFeeStrategy(); fees.register(WalletPayment.class, 1.0);
         var proc = new PaymentProcessor(repo, fees, new NoPromo(), new EmailNotifier());
-        WalletPayment.topUp("w1", 1000);
+        WalletPayment.topUp("w1", Money.of(1000, Currency.INR));
         var factory = new PaymentFactory().register("wallet", req -> new WalletPayment("TXN-TEST3", req.amount(), req.currency(), req.userId(), req.details().get("walletId")));
         var res = proc.execute(factory.create(new PaymentRequest("wallet", 990, Currency.INR, Map.of("walletId","w1"), "u3")), new IdempotencyKey("kT3"));
         assert res.status()==Status.SUCCESS : "Wallet pay should succeed";
-        var r1 = proc.refund("TXN-TEST3", 500);
+        var r1 = proc.refund("TXN-TEST3", Money.of(500, Currency.INR));
         assert r1.status()==Status.SUCCESS : "Refund should succeed";
-        var r2 = proc.refund("TXN-TEST3", 600);
+        var r2 = proc.refund("TXN-TEST3", Money.of(600, Currency.INR));
         assert r2.status()==Status.FAILED : "Over-refund should fail";
     }
 
@@ -482,7 +4033,7 @@ final class TestRunner {
         fees.register(UPIPayment.class, 0.5);
         fees.register(WalletPayment.class, 1.0);
         var proc = new PaymentProcessor(repo, fees, new PercentagePromo(10.0), new SMSNotifier());
-        WalletPayment.topUp("w2", 10000);
+        WalletPayment.topUp("w2", Money.of(10000, Currency.INR));
         var factory = new PaymentFactory()
                 .register("card", req -> new CreditCardPayment("TXN-P1", req.amount(), req.currency(), req.userId(),
                         "A", "4111111111111111", YearMonth.now().plusYears(1), "123"))
@@ -511,8 +4062,1401 @@ final class TestRunner {
         var first = proc.execute(factory.create(req), key);
         var again = proc.execute(factory.create(req), key);
         assert again.message().contains("Idempotent");
-        assert Math.abs(first.chargedAmount()-again.chargedAmount()) < 0.0001;
+        assert first.chargedAmount().equals(again.chargedAmount());
+    }
+
+    static void testMoneyRounding(){
+        // 0.1 + 0.2 style drift must not appear: 10 x 0.10 is exactly 1.00
+        long sum = 0; for(int i=0;i<10;i++) sum += Money.toMinor(0.10, Currency.INR);
+        assert sum == 100 : "Minor-unit sum drifted";
+        // half-up at the fee boundary: 0.5% of 1.01 = 0.00505 -> 0.01
+        assert Money.percentOf(101, Money.ppm(0.5)) == 1 : "Fee rounding";
+        assert Money.percentOf(99_999, Money.ppm(10.0)) == 10_000 : "Promo rounding";
+        assert Money.of(1234.5, Currency.USD).toString().equals("$1234.50") : "Format";
+        assert Money.of(-0.05, Currency.INR).toString().equals("-\u20B90.05") : "Negative format";
+    }
+
+    static void testConcurrentRefundsNeverOverRefund() throws Exception {
+        var repo = new InMemoryTransactionRepository();
+        var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {});
+        repo.save(new Transaction("TXN-HOT", "u6", "Card", Currency.INR, 100_000, 100_000, "****",
+                Status.SUCCESS, Instant.now(), null));
+        int threads = 16, perThread = 500; // 8000 attempts of 1.00 against a 1000.00 capture
+        var start = new CountDownLatch(1);
+        var ok = new AtomicInteger();
+        var pool = Executors.newFixedThreadPool(threads);
+        for(int t=0;t<threads;t++) pool.submit(() -> {
+            start.await();
+            for(int i=0;i<perThread;i++)
+                if(proc.refund("TXN-HOT", Money.of(1, Currency.INR)).status()==Status.SUCCESS) ok.incrementAndGet();
+            return null;
+        });
+        start.countDown();
+        pool.shutdown();
+        assert pool.awaitTermination(30, TimeUnit.SECONDS) : "Stress run timed out";
+        var tx = repo.findById("TXN-HOT").orElseThrow();
+        assert ok.get() == 1000 : "Expected exactly 1000 refunds, got " + ok.get();
+        assert tx.totalRefunded == tx.capturedAmount : "Refunded " + tx.totalRefunded + " of " + tx.capturedAmount;
+    }
+
+    static void testConcurrentUserHistory() throws Exception {
+        var repo = new InMemoryTransactionRepository();
+        int threads = 8, perThread = 5_000;
+        var start = new CountDownLatch(1);
+        var pool = Executors.newFixedThreadPool(threads + 1);
+        var readerSawTear = new AtomicBoolean();
+        for(int t=0;t<threads;t++){
+            final int tid = t;
+            pool.submit(() -> {
+                start.await();
+                for(int i=0;i<perThread;i++)
+                    repo.save(new Transaction("H-"+tid+"-"+i, "heavy", "UPI", Currency.INR, 100, 100, "****",
+                            Status.SUCCESS, Instant.now(), null));
+                return null;
+            });
+        }
+        pool.submit(() -> { // concurrent reader: every snapshot must be fully populated and stable
+            start.await();
+            for(int i=0;i<2_000;i++){
+                var snap = repo.findByUser("heavy");
+                int n = snap.size();
+                for(int j=0;j<n;j++) if(snap.get(j) == null) readerSawTear.set(true);
+                if(snap.size() != n) readerSawTear.set(true);
+            }
+            return null;
+        });
+        start.countDown();
+        pool.shutdown();
+        assert pool.awaitTermination(30, TimeUnit.SECONDS) : "History run timed out";
+        var all = repo.findByUser("heavy");
+        assert all.size() == threads * perThread : "Lost appends: " + all.size();
+        assert new HashSet<>(all).size() == threads * perThread : "Duplicate slots";
+        assert !readerSawTear.get() : "Reader observed a torn snapshot";
+    }
+
+    static void testHistoryPaging(){
+        var repo = new InMemoryTransactionRepository();
+        for(int i=0;i<50;i++)
+            repo.save(new Transaction("PG-"+i, "u7", "UPI", Currency.INR, 100, 100, "****", Status.SUCCESS, Instant.now(), null));
+        repo.save(new Transaction("PG-OTHER", "u8", "UPI", Currency.INR, 100, 100, "****", Status.SUCCESS, Instant.now(), null));
+        var seen = new ArrayList<String>();
+        String cursor = null; int pages = 0;
+        do {
+            var page = repo.findByUser("u7", cursor, 20);
+            page.items().forEach(tx -> seen.add(tx.id));
+            cursor = page.nextCursor(); pages++;
+        } while(cursor != null);
+        assert pages == 3 && seen.size() == 50 : "Paging covered " + seen.size() + " in " + pages + " pages";
+        assert seen.get(0).equals("PG-49") && seen.get(49).equals("PG-0") : "Not newest first";
+        assert repo.streamByUser("u7").limit(3).map(tx -> tx.id).toList().equals(List.of("PG-49", "PG-48", "PG-47"));
+        boolean threw = false;
+        try { repo.findByUser("u7", "PG-OTHER", 5); } catch(IllegalArgumentException ex){ threw = true; }
+        assert threw : "Foreign cursor must be rejected";
+    }
+
+    static void testTimeRangeQuery(){
+        var repo = new InMemoryTransactionRepository();
+        var day = Instant.parse("2025-01-01T00:00:00Z");
+        for(int h=0;h<48;h++)
+            repo.save(new Transaction("TR-"+h, "u"+(h%3), "Card", Currency.INR, 100, 100, "****",
+                    Status.SUCCESS, day.plus(h, ChronoUnit.HOURS), null));
+        var ids = repo.findByCreatedAt(day.plus(1, ChronoUnit.DAYS), day.plus(2, ChronoUnit.DAYS)).map(tx -> tx.id).toList();
+        assert ids.size() == 24 && ids.get(0).equals("TR-24") && ids.get(23).equals("TR-47") : "Range " + ids;
+        assert repo.findByCreatedAt(day.plus(5, ChronoUnit.HOURS), day.plus(5, ChronoUnit.HOURS)).count() == 0 : "Empty range";
+    }
+
+    static void testWalGroupCommitAndRecovery() throws Exception {
+        var dir = Files.createTempDirectory("wal-test");
+        var log = dir.resolve("tx.log");
+        int threads = 8, perThread = 250;
+        try(var repo = new WalTransactionRepository(log, FsyncPolicy.GROUP_COMMIT)){
+            var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {});
+            var pool = Executors.newFixedThreadPool(threads);
+            for(int t=0;t<threads;t++){
+                final int tid = t;
+                pool.submit(() -> {
+                    for(int i=0;i<perThread;i++)
+                        repo.save(new Transaction("W-"+tid+"-"+i, "u"+tid, "UPI", Currency.INR, 1_000, 1_000, "****@x",
+                                Status.SUCCESS, Instant.now(), new IdempotencyKey("wk-"+tid+"-"+i)));
+                    return null;
+                });
+            }
+            pool.shutdown();
+            assert pool.awaitTermination(60, TimeUnit.SECONDS) : "WAL writers timed out";
+            assert proc.refund("W-0-0", Money.ofMinor(300, Currency.INR)).status() == Status.SUCCESS;
+            assert repo.forceCount() < repo.recordCount() : "Expected batched forces, got " + repo.forceCount();
+        }
+        Files.write(log, new byte[]{ 0, 0, 0, 42, 1, 2 }, StandardOpenOption.APPEND); // torn tail
+        try(var reopened = new WalTransactionRepository(log, FsyncPolicy.GROUP_COMMIT)){
+            assert reopened.findById("W-7-249").isPresent() : "Lost a save";
+            assert reopened.findByIdempotency(new IdempotencyKey("wk-3-17")).isPresent() : "Lost an idempotency key";
+            assert reopened.findByUser("u5").size() == perThread : "User index not rebuilt";
+            assert reopened.findById("W-0-0").orElseThrow().totalRefunded == 300 : "Refund not replayed";
+            reopened.save(new Transaction("W-after", "u0", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, Instant.now(), null));
+        }
+        try {
+            try(var again = new WalTransactionRepository(log, FsyncPolicy.NEVER)){
+                assert again.findById("W-after").isPresent() : "Append after truncated tail lost";
+            }
+            // Saves racing close either land or fail; none is left waiting on a flusher that has gone.
+            for(int round=0;round<20;round++){
+                var racing = new WalTransactionRepository(dir.resolve("race-" + round + ".log"), FsyncPolicy.NEVER);
+                var writers = Executors.newFixedThreadPool(4);
+                var stopped = new ArrayList<Future<?>>();
+                for(int t=0;t<4;t++){
+                    String prefix = "C-" + round + "-" + t + "-";
+                    stopped.add(writers.submit(() -> {
+                        try {
+                            for(int i=0;;i++)
+                                racing.save(new Transaction(prefix + i, "u0", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, Instant.now(), null));
+                        } catch(IllegalStateException closed){}
+                    }));
+                }
+                Thread.sleep(2);
+                racing.close();
+                for(var f : stopped) f.get(10, TimeUnit.SECONDS);
+                writers.shutdown();
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    static void testSegmentedStoreSnapshotRecovery() throws Exception {
+        var dir = Files.createTempDirectory("seg-test");
+        try {
+            try(var repo = WalTransactionRepository.segmented(dir, 64 * 1024, FsyncPolicy.GROUP_COMMIT)){
+                var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {});
+                for(int i=0;i<3_000;i++)
+                    repo.save(new Transaction("S-"+i, "u"+(i%10), "Card", Currency.INR, 5_000, 5_000, "**** 1111",
+                            Status.SUCCESS, Instant.now(), new IdempotencyKey("sk-"+i)));
+                for(int i=0;i<100;i++) proc.refund("S-"+i, Money.ofMinor(1_000, Currency.INR));
+                int before = segmentFiles(dir);
+                var snapshots = Executors.newFixedThreadPool(4);
+                var taken = new ArrayList<Future<Long>>();
+                for(int i=0;i<4;i++) taken.add(snapshots.submit(repo::snapshot));
+                for(var f : taken) f.get(30, TimeUnit.SECONDS); // concurrent calls must not share the temp file
+                snapshots.shutdown();
+                assert before > 3 && segmentFiles(dir) < before : "Snapshot did not compact " + before + " segments";
+                for(int i=0;i<50;i++) proc.refund("S-"+i, Money.ofMinor(500, Currency.INR));
+                repo.save(new Transaction("S-tail", "u0", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, Instant.now(), null));
+            }
+            try(var reopened = WalTransactionRepository.segmented(dir, 64 * 1024, FsyncPolicy.GROUP_COMMIT)){
+                assert reopened.replayedCount() == 51 : "Replayed " + reopened.replayedCount() + ", expected only the tail";
+                assert reopened.findById("S-2999").isPresent() && reopened.findById("S-tail").isPresent() : "Lost saves";
+                assert reopened.findById("S-10").orElseThrow().totalRefunded == 1_500 : "Refund not folded";
+                assert reopened.findById("S-60").orElseThrow().totalRefunded == 1_000 : "Snapshot refund lost";
+                assert reopened.findByIdempotency(new IdempotencyKey("sk-42")).isPresent() : "Idempotency key lost";
+                assert reopened.findByUser("u3").size() == 300 : "User index not rebuilt";
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    static void testWalFailedBatchIsRolledBack() throws Exception {
+        var dir = Files.createTempDirectory("wal-fail");
+        try {
+            for(boolean segmented : new boolean[]{ false, true }){
+                var path = dir.resolve(segmented ? "segments" : "tx.log");
+                java.util.function.Supplier<LogStorage> open = () -> {
+                    try { return segmented ? new MappedSegmentLog(path, 4096) : new FileChannelLog(path); }
+                    catch(IOException e){ throw new UncheckedIOException(e); }
+                };
+                var failFlush = new AtomicBoolean();
+                var flaky = failingFlush(open.get(), failFlush);
+                var snapshot = dir.resolve((segmented ? "seg" : "file") + ".snapshot");
+                try(var repo = new WalTransactionRepository(flaky, snapshot, FsyncPolicy.GROUP_COMMIT, Duration.ofMillis(10))){
+                    repo.save(new Transaction("F-1", "u", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, Instant.now(), null));
+                    failFlush.set(true);
+                    boolean threw = false;
+                    try { repo.save(new Transaction("F-2", "u", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, Instant.now(), null)); }
+                    catch(UncheckedIOException e){ threw = true; }
+                    assert threw && repo.findById("F-2").isEmpty() : "Failed save reported or indexed";
+                    repo.save(new Transaction("F-3", "u", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, Instant.now(), null));
+                }
+                try(var reopened = new WalTransactionRepository(open.get(), snapshot, FsyncPolicy.NEVER, Duration.ofMillis(10))){
+                    assert reopened.findById("F-1").isPresent() && reopened.findById("F-3").isPresent() : "Lost a committed save";
+                    assert reopened.findById("F-2").isEmpty() : "A save reported as failed came back on replay (segmented=" + segmented + ")";
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /** Writes each flush through to {@code real}, then fails it as a force would while {@code failNext} is set. */
+    static LogStorage failingFlush(LogStorage real, AtomicBoolean failNext){
+        return new LogStorage(){
+            @Override public void replay(long from, Consumer<ByteBuffer> sink) throws IOException { real.replay(from, sink); }
+            @Override public void append(byte[] payload) throws IOException { real.append(payload); }
+            @Override public long flush(boolean force) throws IOException {
+                long end = real.flush(false);
+                if(failNext.getAndSet(false)) throw new IOException("fsync failed");
+                return force ? real.flush(true) : end;
+            }
+            @Override public long position(){ return real.position(); }
+            @Override public void truncate(long lsn) throws IOException { real.truncate(lsn); }
+            @Override public void discardBefore(long lsn) throws IOException { real.discardBefore(lsn); }
+            @Override public void close() throws IOException { real.close(); }
+        };
+    }
+
+    static void testOffHeapRepository() throws Exception {
+        var repo = new OffHeapTransactionRepository();
+        var t0 = Instant.parse("2025-01-01T00:00:00Z");
+        int n = 70_000; // spans two record chunks
+        for(int i=0;i<n;i++)
+            repo.save(new Transaction("OH-"+i, "u"+(i%7), i%2==0 ? "Card" : "UPI", Currency.INR, 1_000, 1_000,
+                    "**** 1111", Status.SUCCESS, t0.plusSeconds(i), i%5==0 ? new IdempotencyKey("ok-"+i) : null));
+        repo.save(new Transaction("OH-\u00E9", "u\u00E9", "Wallet", Currency.USD, 5, 5, "WALLET-****", Status.SUCCESS,
+                t0.plusSeconds(n), null));
+        var tx = repo.findById("OH-65537").orElseThrow();
+        assert tx.userId.equals("u"+(65537%7)) && tx.methodName.equals("UPI") && tx.createdAt.equals(t0.plusSeconds(65537)) : "Round trip";
+        assert repo.findById("OH-\u00E9").orElseThrow().currency == Currency.USD : "Non-ASCII id";
+        assert repo.findById("OH-missing").isEmpty();
+        assert repo.findByIdempotency(new IdempotencyKey("ok-69995")).orElseThrow().id.equals("OH-69995");
+        assert repo.findByIdempotency(new IdempotencyKey("ok-69996")).isEmpty();
+        var page = repo.findByUser("u3", null, 5);
+        assert page.items().get(0).id.equals("OH-69996") && page.nextCursor().equals("OH-69968") : "Paging";
+        assert repo.findByUser("u3", page.nextCursor(), 1).items().get(0).id.equals("OH-69961");
+        assert repo.findByCreatedAt(t0.plusSeconds(100), t0.plusSeconds(3_000)).count() == 2_900 : "Time range";
+        var visited = new long[1];
+        repo.forEachByUser("u0", v -> visited[0] += v.capturedAmount());
+        assert visited[0] == 10_000L * 1_000 : "Flyweight walk";
+
+        var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {});
+        var pool = Executors.newFixedThreadPool(8);
+        var ok = new AtomicInteger();
+        for(int t=0;t<8;t++) pool.submit(() -> {
+            for(int i=0;i<50;i++) if(proc.refund("OH-1", Money.ofMinor(100, Currency.INR)).status()==Status.SUCCESS) ok.incrementAndGet();
+        });
+        pool.shutdown();
+        assert pool.awaitTermination(30, TimeUnit.SECONDS);
+        assert ok.get() == 10 && repo.findById("OH-1").orElseThrow().totalRefunded == 1_000 : "Off-heap refunds " + ok.get();
+
+        // Rule versions keep their full long range, and an id is stored once.
+        long version = Integer.MAX_VALUE + 5L;
+        repo.save(new Transaction("OH-v", "u1", "Card", Currency.INR, 1, 1, "x", Status.SUCCESS, t0, null, version));
+        assert repo.findById("OH-v").orElseThrow().ruleVersion == version : "Rule version truncated";
+        boolean rejected = false;
+        try { repo.save(new Transaction("OH-v", "u2", "UPI", Currency.INR, 9, 9, "y", Status.SUCCESS, t0, null)); }
+        catch(IllegalArgumentException e){ rejected = true; }
+        assert rejected && repo.findById("OH-v").orElseThrow().userId.equals("u1") && repo.findByUser("u2").stream().noneMatch(t -> t.id.equals("OH-v"))
+                : "Duplicate id stored";
+
+        // A reused idempotency key answers with the latest save, in both repositories.
+        var now = Instant.now();
+        for(TransactionRepository r : List.of(repo, new InMemoryTransactionRepository())){
+            r.save(new Transaction("OH-k1", "u1", "UPI", Currency.INR, 1, 1, "x", Status.FAILED, now, new IdempotencyKey("ok-reused")));
+            r.save(new Transaction("OH-k2", "u1", "UPI", Currency.INR, 1, 1, "x", Status.SUCCESS, now, new IdempotencyKey("ok-reused")));
+            assert r.findByIdempotency(new IdempotencyKey("ok-reused")).orElseThrow().id.equals("OH-k2") : r.getClass().getSimpleName();
+        }
+    }
+
+    static void testConcurrentIdempotentRetries() throws Exception {
+        var repo = new InMemoryTransactionRepository();
+        var charges = new AtomicInteger();
+        Notifier slowNotifier = (u, r) -> { // widens the window between claim and persist
+            charges.incrementAndGet();
+            try { Thread.sleep(50); } catch(InterruptedException e){ Thread.currentThread().interrupt(); }
+        };
+        var approving = new SimulatedProvider(ProviderProfile.instant(0, "declined")); // every attempt that reaches it charges
+        var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), new NoPromo(), slowNotifier)
+                .usingProvider(UPIPayment.class, approving);
+        var key = new IdempotencyKey("retry-storm");
+        int threads = 16;
+        var start = new CountDownLatch(1);
+        var pool = Executors.newFixedThreadPool(threads);
+        var results = new ArrayList<Future<PaymentResult>>();
+        for(int t=0;t<threads;t++) results.add(pool.submit(() -> {
+            start.await();
+            return proc.execute(new UPIPayment("TXN-RETRY", 250, Currency.INR, "u9", "retry@oksbi"), key);
+        }));
+        start.countDown();
+        var distinct = new HashSet<String>();
+        for(var f : results){ var r = f.get(30, TimeUnit.SECONDS); distinct.add(r.status() + "/" + r.chargedAmount()); }
+        pool.shutdown();
+        assert charges.get() == 1 && approving.stats().calls() == 2 : "Charged " + charges.get() + " times, " + approving.stats().calls() + " provider calls"; // one authorize + one capture
+        assert distinct.size() == 1 && distinct.iterator().next().startsWith("SUCCESS") : "Duplicates saw different outcomes: " + distinct;
+        assert repo.findByUser("u9").size() == 1 : "Persisted " + repo.findByUser("u9").size() + " charges";
+    }
+
+    static void testIdempotencyRetention(){
+        var now = new AtomicLong(Instant.parse("2025-01-01T00:00:00Z").toEpochMilli());
+        var store = new IdempotencyStore<String>(Duration.ofHours(1), 6, 0, now::get);
+        for(int i=0;i<1_000;i++) store.put("k"+i, "v"+i, Instant.ofEpochMilli(now.get()));
+        now.addAndGet(Duration.ofMinutes(59).toMillis());
+        assert "v7".equals(store.get("k7")) : "Key expired early";
+        now.addAndGet(Duration.ofMinutes(2).toMillis());
+        assert store.get("k7") == null : "Key outlived retention";
+        now.addAndGet(Duration.ofMinutes(20).toMillis());
+        store.get("any"); // crossing bucket boundaries drains the expired generation
+        assert store.size() == 0 && store.expiredCount() == 1_000 : "Not evicted: " + store.size();
+        store.put("old", "x", Instant.ofEpochMilli(now.get()).minus(2, ChronoUnit.HOURS));
+        assert store.get("old") == null && store.size() == 0 : "Replayed expired key retained";
+
+        var capped = new IdempotencyStore<String>(Duration.ofHours(1), 6, 3, now::get);
+        var at = Instant.ofEpochMilli(now.get());
+        capped.put("a", "1", at); capped.put("b", "2", at);
+        now.addAndGet(Duration.ofMinutes(10).toMillis());
+        capped.put("c", "3", at);
+        assert capped.get("a") != null; // touch: a becomes most recent
+        capped.put("d", "4", at);
+        assert capped.size() == 3 && capped.get("b") == null && capped.get("a") != null : "LRU fallback";
+        assert capped.evictedCount() == 1;
+    }
+
+    static void testIdempotencyBloomFilter(){
+        var now = new AtomicLong(System.currentTimeMillis());
+        var backing = new InMemoryTransactionRepository();
+        backing.save(new Transaction("BF-OLD", "u10", "UPI", Currency.INR, 100, 100, "x", Status.SUCCESS,
+                Instant.ofEpochMilli(now.get()), new IdempotencyKey("recovered-key")));
+        var repo = new IdempotencyFilteringRepository(backing, Duration.ofHours(24), 20_000, 0.01, now::get);
+        assert repo.findByIdempotency(new IdempotencyKey("recovered-key")).isPresent() : "Seeded key filtered out";
+
+        var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {});
+        for(int i=0;i<10_000;i++)
+            repo.save(new Transaction("BF-"+i, "u10", "UPI", Currency.INR, 100, 100, "x", Status.SUCCESS,
+                    Instant.ofEpochMilli(now.get()), new IdempotencyKey("seen-"+i)));
+        for(int i=0;i<20_000;i++) repo.findByIdempotency(new IdempotencyKey("fresh-"+i));
+        var replay = proc.execute(new UPIPayment("BF-X", 1, Currency.INR, "u10", "a@b"), new IdempotencyKey("seen-123"));
+        assert replay.message().contains("Idempotent") : "Filter hid a stored key";
+        var m = repo.metrics();
+        assert m.definitelyNew() + m.falsePositives() == 20_000 : "Metrics " + m;
+        assert m.observedFpp() < 0.03 : "False-positive rate " + m;
+
+        now.addAndGet(Duration.ofHours(33).toMillis()); // window plus one slice: every slice rotated out
+        assert repo.findByIdempotency(new IdempotencyKey("seen-1")).isEmpty() : "Filter outlived retention";
+        assert repo.metrics().expectedFpp() < 1e-9 : "Rotated slices not emptied";
+    }
+
+    static void testTieredFeesWithoutAllocation(){
+        // below 1000.00: 3.00 flat + 2%, at least 5.00; from 1000.00: 1.5% capped at 50.00
+        var card = new FeeSchedule(new FeeTier(0, 300, Money.ppm(2.0), 500, Long.MAX_VALUE),
+                                   new FeeTier(100_000, 0, Money.ppm(1.5), 0, 5_000));
+        var fees = new RegistryFeeStrategy();
+        fees.register(CreditCardPayment.class, card);
+        fees.register(UPIPayment.class, 0.5);
+        var p = new CreditCardPayment("TXN-FEE", 10, Currency.INR, "u11", "A", "4111111111111111", YearMonth.now().plusYears(1), "123");
+        assert fees.apply(1_000, p) == 500 : "Min cap";           // 3.00 + 0.20 -> 5.00
+        assert fees.apply(50_000, p) == 1_300 : "Flat + percent";  // 3.00 + 10.00
+        assert fees.apply(200_000, p) == 3_000 : "Upper tier";     // 1.5% of 2000.00
+        assert fees.apply(1_000_000, p) == 5_000 : "Max cap";
+        var wallet = new WalletPayment("TXN-FEE2", 10, Currency.INR, "u11", "w-fee");
+        assert fees.apply(50_000, wallet) == 0 : "Unregistered method";
+
+        if(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean mx && mx.isThreadAllocatedMemorySupported()){
+            long acc = 0;
+            for(int i=0;i<200_000;i++) acc += fees.apply(i, p); // warm up past JIT compilation
+            long tid = Thread.currentThread().getId(), before = mx.getThreadAllocatedBytes(tid);
+            for(int i=0;i<1_000_000;i++) acc += fees.apply(i, p);
+            long allocated = mx.getThreadAllocatedBytes(tid) - before;
+            assert acc > 0 && allocated < 64 * 1024 : "Fee path allocated " + allocated + " bytes";
+        }
+    }
+
+    static void testRuleReloadKeepsInFlightVersion() throws Exception {
+        var file = Files.createTempFile("rules", ".txt");
+        try {
+            Files.writeString(file, "# launch pricing\nfee.upi = 0.5\nfee.card = 0:3.00:2.0:5.00: ; 1000.00:0:1.5:0:50.00\npromo = percent:10\n");
+            var engine = RuleEngine.fromFile(file);
+            var repo = new InMemoryTransactionRepository();
+            var proc = new PaymentProcessor(repo, engine, (u, r) -> {});
+            var r1 = proc.execute(new UPIPayment("TXN-R1", 1000, Currency.INR, "u12", "a@oksbi"), new IdempotencyKey("rk1"));
+            if(r1.status() == Status.SUCCESS){ // 900.00 + 0.5% = 904.50
+                assert r1.chargedAmount().equals(Money.of(904.50, Currency.INR)) : "v1 pricing " + r1;
+                assert repo.findById("TXN-R1").orElseThrow().ruleVersion == 1 : "Version not recorded";
+            }
+            Files.writeString(file, "fee.upi = 1.0\npromo = none\n");
+            assert engine.reload().version() == 2;
+            var r2 = proc.execute(new UPIPayment("TXN-R2", 1000, Currency.INR, "u12", "a@oksbi"), new IdempotencyKey("rk2"));
+            if(r2.status() == Status.SUCCESS){
+                assert r2.chargedAmount().equals(Money.of(1010, Currency.INR)) : "v2 pricing " + r2;
+                assert repo.findById("TXN-R2").orElseThrow().ruleVersion == 2;
+            }
+            Files.writeString(file, "fee.upi = banana\n");
+            boolean threw = false;
+            try { engine.reload(); } catch(IllegalArgumentException e){ threw = true; }
+            assert threw && engine.current().version() == 2 : "Bad file replaced live rules";
+
+            // A flat promo is denominated in a currency and leaves other currencies alone.
+            Files.writeString(file, "promo = flat:5.00:USD\n");
+            var flat = engine.reload().promo();
+            assert flat.apply(10_000, new WalletPayment("TXN-R4", 100, Currency.USD, "u12", "w-usd")) == 9_500;
+            assert flat.apply(10_000, new WalletPayment("TXN-R5", 100, Currency.INR, "u12", "w-inr")) == 10_000 : "Flat USD promo applied to INR";
+            Files.writeString(file, "promo = flat:5.00\n");
+            threw = false;
+            try { engine.reload(); } catch(IllegalArgumentException e){ threw = true; }
+            assert threw : "Flat promo without a currency accepted";
+
+            // Background reload failures reach the listener and the counter, not stderr.
+            var failures = new LinkedBlockingQueue<RuntimeException>();
+            engine.onReloadFailure(failures::add).startWatching(Duration.ofMillis(10));
+            Files.writeString(file, "promo = bogus\n");
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.from(Instant.now().plusSeconds(60)));
+            var failure = failures.poll(10, TimeUnit.SECONDS);
+            engine.stopWatching();
+            assert failure != null && failure.getMessage().contains("unknown promo") && engine.reloadFailures() >= 1 : "Reload failure not surfaced";
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        // A payment that has started pricing keeps its version across a concurrent publish.
+        var entered = new CountDownLatch(1); var release = new CountDownLatch(1);
+        Promo gate = amount -> { entered.countDown(); try { release.await(); } catch(InterruptedException e){ throw new IllegalStateException(e); } return amount; };
+        var fees = new RegistryFeeStrategy(); fees.register(WalletPayment.class, 1.0);
+        var engine = RuleEngine.fixed(fees, gate);
+        var repo = new InMemoryTransactionRepository();
+        var proc = new PaymentProcessor(repo, engine, (u, r) -> {});
+        WalletPayment.topUp("w-rules", Money.of(5000, Currency.INR));
+        var pool = Executors.newSingleThreadExecutor();
+        var pending = pool.submit(() -> proc.execute(new WalletPayment("TXN-R3", 1000, Currency.INR, "u12", "w-rules"), new IdempotencyKey("rk3")));
+        assert entered.await(10, TimeUnit.SECONDS);
+        var higher = new RegistryFeeStrategy(); higher.register(WalletPayment.class, 5.0);
+        engine.publish(higher, new NoPromo());
+        release.countDown();
+        var r3 = pending.get(10, TimeUnit.SECONDS);
+        pool.shutdown();
+        assert r3.chargedAmount().equals(Money.of(1010, Currency.INR)) : "In-flight payment repriced: " + r3;
+        assert repo.findById("TXN-R3").orElseThrow().ruleVersion == 0 : "In-flight version changed";
+    }
+
+    static void testPromoChainStackingCapsAndLimits(){
+        var segmentAsks = new AtomicInteger();
+        var chain = new PromoChain(Duration.ofMinutes(5), 1000, System::currentTimeMillis)
+                .add(PromoRule.flat("WELCOME", Money.of(100, Currency.INR)).perUser(1))
+                .add(PromoRule.percent("FEST10", 10).onlyFor("UPI", "Wallet").cappedAt(Money.of(50, Currency.INR))
+                        .forUsers(u -> { segmentAsks.incrementAndGet(); return u.startsWith("vip"); }))
+                .add(PromoRule.percent("BIG5", 5).minAmount(Money.of(2000, Currency.INR)).exclusive())
+                .add(PromoRule.flat("CARD1", Money.of(1, Currency.INR)).onlyFor("Card"))
+                .capTotal(Money.of(150, Currency.INR));
+        var repo = new InMemoryTransactionRepository();
+        var proc = new PaymentProcessor(repo, new RegistryFeeStrategy(), chain, (u, r) -> {});
+
+        // Wallet 1000: WELCOME 100 -> 900, FEST10 10% of 900 = 90 capped at 50 -> 850.
+        WalletPayment.topUp("w-promo", Money.of(10_000, Currency.INR));
+        var r1 = proc.execute(new WalletPayment("TXN-P1", 1000, Currency.INR, "vip-1", "w-promo"), new IdempotencyKey("pk1"));
+        assert r1.chargedAmount().equals(Money.of(850, Currency.INR)) : "stacked " + r1;
+        // Second payment: WELCOME is used up; 10% of 1000 capped at 50.
+        var r2 = proc.execute(new WalletPayment("TXN-P2", 1000, Currency.INR, "vip-1", "w-promo"), new IdempotencyKey("pk2"));
+        assert r2.chargedAmount().equals(Money.of(950, Currency.INR)) : "per-user limit " + r2;
+        // 3000: FEST10 capped 50, BIG5 150 would exceed the 150 total cap -> 100, and BIG5 is exclusive.
+        var r3 = proc.execute(new WalletPayment("TXN-P3", 3000, Currency.INR, "vip-1", "w-promo"), new IdempotencyKey("pk3"));
+        assert r3.chargedAmount().equals(Money.of(2850, Currency.INR)) : "total cap " + r3;
+        assert segmentAsks.get() == 1 : "Segment re-evaluated: " + segmentAsks.get();
+        assert chain.cachedEligibility() > 0;
+
+        // A failed charge hands the use back: the wallet is short, so WELCOME stays available.
+        var r4 = proc.execute(new WalletPayment("TXN-P4", 500, Currency.INR, "new-1", "w-empty"), new IdempotencyKey("pk4"));
+        assert r4.status() == Status.FAILED && chain.uses("WELCOME", "new-1") == 0 : "Failed charge kept the use";
+        var r5 = proc.execute(new WalletPayment("TXN-P5", 500, Currency.INR, "new-1", "w-promo"), new IdempotencyKey("pk5"));
+        assert r5.chargedAmount().equals(Money.of(400, Currency.INR)) : "non-vip, non-UPI " + r5;
+        assert chain.uses("WELCOME", "new-1") == 1;
+
+        // Through the amount-only contract, just BIG5 can price: the others need the payment.
+        Promo plain = chain;
+        assert plain.apply(100_000) == 100_000 && plain.apply(300_000) == 285_000 : "amount-only pricing " + plain.apply(300_000);
+
+        // Concurrent payments from one user never take a single-use promo twice.
+        var discounted = new AtomicInteger();
+        var pool = Executors.newFixedThreadPool(4);
+        var futures = IntStream.range(0, 32).mapToObj(i -> pool.submit(() -> {
+            var p = new WalletPayment("TXN-PC" + i, 1000, Currency.INR, "burst", "w-promo");
+            if(chain.apply(p.amount, p) < p.amount) discounted.incrementAndGet();
+            chain.complete(p, true);
+        })).toList();
+        for(var f : futures){ try { f.get(10, TimeUnit.SECONDS); } catch(Exception e){ throw new IllegalStateException(e); } }
+        pool.shutdown();
+        assert discounted.get() == 1 && chain.uses("WELCOME", "burst") == 1 : "Limit overshot: " + discounted.get();
+    }
+
+    static void testPaymentValidation(){
+        // Agrees with the regexes and strip-then-Luhn path it replaced, on random near-valid input.
+        var upi = java.util.regex.Pattern.compile("^[a-zA-Z0-9.\\-_]+@[a-zA-Z]+$");
+        var rnd = new SplittableRandom(15);
+        String alphabet = "0123456789 \t@.-_aZ9xé";
+        for(int i = 0; i < 50_000; i++){
+            var sb = new StringBuilder();
+            for(int k = rnd.nextInt(0, 24); k > 0; k--) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+            String s = sb.toString();
+            assert PaymentValidation.upiId(s) == upi.matcher(s).matches() : "UPI mismatch on '" + s + "'";
+        }
+        for(int i = 0; i < 50_000; i++){
+            var sb = new StringBuilder();
+            for(int k = rnd.nextInt(10, 22); k > 0; k--) sb.append(rnd.nextInt(8) == 0 ? ' ' : (char) ('0' + rnd.nextInt(10)));
+            String s = sb.toString(), stripped = s.replaceAll("\\s+", "");
+            boolean legacy = stripped.length() >= 12 && stripped.length() <= 19 && CreditCardPayment.luhnValid(stripped);
+            String fast = PaymentValidation.cardDigits(s);
+            assert legacy == (fast != null) && (fast == null || fast.equals(stripped)) : "Card mismatch on '" + s + "'";
+        }
+        assert PaymentValidation.cardDigits("4111111111111111") == "4111111111111111" : "Clean number was copied";
+        assert "4111111111111111".equals(PaymentValidation.cardDigits("4111 1111\t1111 1111"));
+        assert PaymentValidation.cardDigits("4111-1111-1111-1111") == null : "Separators other than whitespace";
+        assert PaymentValidation.cardDigits("41111111111111111111111") == null : "Too long";
+        assert PaymentValidation.walletId("wal-001") && !PaymentValidation.walletId(" ") && !PaymentValidation.walletId("w 1");
+        assert PaymentValidation.digits("123", 3, 4) && !PaymentValidation.digits("12a", 3, 4);
+
+        // Rejecting input costs no allocation; the exception thrown by the constructors is all that allocates.
+        var mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String[] bad = { "4111 1111 1111 1112", "a@b@c", "@oksbi", "4111x" };
+        long hits = 0;
+        for(int i = 0; i < 20_000; i++) for(var b : bad) if(PaymentValidation.cardDigits(b) != null || PaymentValidation.upiId(b)) hits++;
+        long before = mx.getCurrentThreadAllocatedBytes();
+        for(int i = 0; i < 100_000; i++) for(var b : bad) if(PaymentValidation.cardDigits(b) != null || PaymentValidation.upiId(b)) hits++;
+        long allocated = mx.getCurrentThreadAllocatedBytes() - before;
+        assert hits == 0 && allocated < 64 * 1024 : "Validation allocated " + allocated + " bytes";
+    }
+
+    static void testBatchLuhnMatchesScalar(){
+        var rnd = new SplittableRandom(16);
+        var numbers = new String[20_000];
+        for(int i = 0; i < numbers.length; i++){
+            var sb = new StringBuilder();
+            int len = i % 10 == 0 ? rnd.nextInt(0, 30) : rnd.nextInt(12, 20);
+            for(int k = 0; k < len; k++) sb.append(i % 7 == 0 && rnd.nextInt(10) == 0 ? (char) rnd.nextInt(32, 127) : (char) ('0' + rnd.nextInt(10)));
+            numbers[i] = sb.toString();
+        }
+        numbers[0] = "4111111111111111"; numbers[1] = "4111111111111112"; numbers[2] = ""; numbers[3] = "000000000000000000000000";
+        var fast = LuhnBatch.validate(numbers);
+        var scalar = LuhnBatch.validateScalar(numbers);
+        for(int i = 0; i < numbers.length; i++)
+            assert fast[i] == scalar[i] : "Batch disagrees on '" + numbers[i] + "'";
+        assert fast[0] && !fast[1] && fast[2] && fast[3];
+    }
+
+    static void testBinTableLookupAndFees() throws IOException {
+        var csv = Files.createTempFile("bins", ".csv");
+        try {
+            Files.writeString(csv, """
+                    from,to,network,issuer,type
+                    4,4,VISA,,CREDIT
+                    411111,411111,VISA,Test Bank,DEBIT   # nested inside the VISA range
+                    45145700,45145799,VISA,HDFC Bank,DEBIT
+                    2221,2720,MASTERCARD,,CREDIT
+                    51,55,MASTERCARD,,CREDIT
+                    6080,6089,RUPAY,,DEBIT
+                    """);
+            var table = BinTable.load(csv);
+            assert table.lookup("4111111111111111").equals(new BinInfo(CardNetwork.VISA, "Test Bank", CardType.DEBIT));
+            assert table.lookup("4000056655665556").equals(new BinInfo(CardNetwork.VISA, "", CardType.CREDIT));
+            assert table.lookup("4514570012345678").issuer().equals("HDFC Bank");
+            assert table.lookup("4514580012345678").issuer().isEmpty() : "Range end leaked";
+            assert table.lookup("2720991234567890").network() == CardNetwork.MASTERCARD;
+            assert table.lookup("2721001234567890") == BinInfo.UNKNOWN;
+            assert table.lookup("5599999912345678").network() == CardNetwork.MASTERCARD;
+            assert table.lookup("6085001234567890").network() == CardNetwork.RUPAY;
+            assert table.lookup("3782822463100050") == BinInfo.UNKNOWN && table.lookup("41") == BinInfo.UNKNOWN;
+            // VISA splits around the two nested ranges; the two MASTERCARD ranges stay separate.
+            assert table.intervals() == 8 : "intervals " + table.intervals();
+
+            Files.writeString(csv, "4,3,VISA,,CREDIT\n");
+            boolean threw = false;
+            try { BinTable.load(csv); } catch(IllegalArgumentException e){ threw = e.getMessage().contains(":1:"); }
+            assert threw : "Inverted range accepted";
+
+            var fallback = new RegistryFeeStrategy(); fallback.register(CreditCardPayment.class, 2.0);
+            var fees = new BinFeeStrategy(table, fallback)
+                    .register(CardNetwork.VISA, FeeSchedule.percent(1.8))
+                    .register(CardNetwork.VISA, CardType.DEBIT, FeeSchedule.percent(0.9));
+            var exp = YearMonth.now().plusYears(1);
+            var debit = new CreditCardPayment("TXN-B1", 1000, Currency.INR, "u17", "A", "4111111111111111", exp, "123");
+            var credit = new CreditCardPayment("TXN-B2", 1000, Currency.INR, "u17", "A", "4000056655665556", exp, "123");
+            var master = new CreditCardPayment("TXN-B3", 1000, Currency.INR, "u17", "A", "5555555555554444", exp, "123");
+            assert fees.apply(100_000, debit) == 900 && fees.apply(100_000, credit) == 1_800 && fees.apply(100_000, master) == 2_000;
+
+            var mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long acc = 0;
+            for(int i = 0; i < 20_000; i++) acc += table.lookup(debit.bin8() + i).type().ordinal() + fees.apply(100_000, credit);
+            long before = mx.getCurrentThreadAllocatedBytes();
+            for(int i = 0; i < 200_000; i++) acc += table.lookup(debit.bin8() + i).type().ordinal() + fees.apply(100_000, credit);
+            long allocated = mx.getCurrentThreadAllocatedBytes() - before;
+            assert acc > 0 && allocated < 64 * 1024 : "BIN lookups allocated " + allocated + " bytes";
+        } finally {
+            Files.deleteIfExists(csv);
+        }
+    }
+
+    static void testWalletLedgerConcurrentDebits() throws Exception {
+        var ledger = new WalletLedger();
+        ledger.credit("corp", 10_000, "seed");
+        int threads = 8, perThread = 2_000;
+        var taken = new AtomicInteger();
+        var start = new CountDownLatch(1);
+        var pool = Executors.newFixedThreadPool(threads);
+        var futures = new ArrayList<Future<?>>();
+        for(int t = 0; t < threads; t++) futures.add(pool.submit(() -> {
+            start.await();
+            for(int i = 0; i < perThread; i++) if(ledger.debit("corp", 1, "d")) taken.incrementAndGet();
+            return null;
+        }));
+        start.countDown();
+        for(var f : futures) f.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        assert taken.get() == 10_000 && ledger.balance("corp") == 0 : "Lost or overdrawn: " + taken.get() + " / " + ledger.balance("corp");
+
+        var entries = ledger.entries("corp");
+        assert entries.size() == 10_001 : "entries " + entries.size();
+        assert entries.get(0).kind() == WalletEntry.Kind.CREDIT && entries.get(0).balanceAfter() == 10_000;
+        // Each debit left a distinct balance, whatever order the entries were appended in.
+        var after = new BitSet();
+        for(var e : entries) if(e.kind() == WalletEntry.Kind.DEBIT) after.set((int) e.balanceAfter());
+        assert after.cardinality() == 10_000 && after.nextSetBit(0) == 0 && after.previousSetBit(20_000) == 9_999;
+
+        assert !ledger.debit("corp", 1, "overdraw") && !ledger.debit("nobody", 1, "x") && ledger.entries("corp").size() == 10_001;
+        assert ledger.credit("corp", 250, "refund") == 250;
+        var view = ledger.entries("corp");
+        ledger.credit("corp", 1, "late");
+        assert view.size() == 10_002 && ledger.entries("corp").size() == 10_003 : "Entry view not stable";
+    }
+
+    static void testWalletHoldsCaptureAndExpiry() throws Exception {
+        var now = new AtomicLong(1_000_000);
+        var ledger = new WalletLedger(now::get, Duration.ofSeconds(1));
+        ledger.credit("m", 10_000, "seed");
+        var expired = new AtomicInteger();
+        assert ledger.hold("m", "H1", 4_000, Duration.ofMinutes(15), expired::incrementAndGet);
+        assert ledger.hold("m", "H2", 3_000, Duration.ofMinutes(15), expired::incrementAndGet);
+        assert !ledger.hold("m", "H3", 3_001, Duration.ofMinutes(15), null) : "Held more than the balance";
+        assert ledger.balance("m") == 3_000 && ledger.held("m") == 7_000;
+        assert !ledger.debit("m", 3_001, "d") : "Debit spent held funds";
+
+        assert ledger.capture("H1", 2_500) && !ledger.capture("H1", 2_500) && !ledger.release("H1");
+        assert ledger.balance("m") == 4_500 && ledger.held("m") == 3_000 : "Partial capture did not return the rest";
+        assert ledger.release("H2") && !ledger.capture("H2", 1) && ledger.balance("m") == 7_500;
+
+        // Expiry: the wheel releases the hold once its deadline passes, and capture refuses it even before a sweep.
+        assert ledger.hold("m", "H4", 1_000, Duration.ofMinutes(15), expired::incrementAndGet);
+        assert ledger.hold("m", "H5", 1_000, Duration.ofHours(2), expired::incrementAndGet); // longer than one revolution
+        now.addAndGet(Duration.ofMinutes(15).toMillis() - 1);
+        assert ledger.expireDue() == 0 && ledger.held("m") == 2_000;
+        now.addAndGet(1);
+        assert !ledger.capture("H4", 1_000) : "Captured an expired hold";
+        assert expired.get() == 1 && ledger.held("m") == 1_000;
+        now.addAndGet(Duration.ofHours(2).toMillis());
+        assert ledger.expireDue() == 1 && expired.get() == 2 && ledger.held("m") == 0 && ledger.balance("m") == 7_500;
+        var kinds = ledger.entries("m").stream().map(WalletEntry::kind).toList();
+        assert kinds.equals(List.of(WalletEntry.Kind.CREDIT, WalletEntry.Kind.HOLD, WalletEntry.Kind.HOLD, WalletEntry.Kind.CAPTURE,
+                WalletEntry.Kind.RELEASE, WalletEntry.Kind.RELEASE, WalletEntry.Kind.HOLD, WalletEntry.Kind.HOLD,
+                WalletEntry.Kind.EXPIRE, WalletEntry.Kind.EXPIRE)) : kinds.toString();
+
+        // Processor: auth-only records nothing; capture records the authorized price; release records nothing.
+        var repo = new InMemoryTransactionRepository();
+        var fees = new RegistryFeeStrategy(); fees.register(WalletPayment.class, 1.0);
+        var proc = new PaymentProcessor(repo, fees, new NoPromo(), (u, r) -> {});
+        WalletPayment.topUp("w-hold", Money.of(2_000, Currency.INR));
+        var a1 = proc.authorize(new WalletPayment("TXN-H1", 1000, Currency.INR, "u19", "w-hold"), new IdempotencyKey("hk1"), Duration.ofMinutes(30));
+        assert a1.status() == Status.PENDING && a1.chargedAmount().equals(Money.of(1010, Currency.INR));
+        assert repo.findById("TXN-H1").isEmpty() && WalletPayment.ledger().balance("w-hold") == 99_000;
+        var c1 = proc.capture("TXN-H1");
+        assert c1.status() == Status.SUCCESS && repo.findById("TXN-H1").orElseThrow().capturedAmount == 101_000;
+        assert proc.capture("TXN-H1").status() == Status.FAILED : "Captured twice";
+        var a2 = proc.authorize(new WalletPayment("TXN-H2", 500, Currency.INR, "u19", "w-hold"), new IdempotencyKey("hk2"), Duration.ofMinutes(30));
+        assert a2.status() == Status.PENDING && proc.release("TXN-H2") && !proc.release("TXN-H2");
+        assert repo.findById("TXN-H2").isEmpty() && WalletPayment.ledger().balance("w-hold") == 99_000;
+        var a3 = proc.authorize(new WalletPayment("TXN-H3", 5000, Currency.INR, "u19", "w-hold"), new IdempotencyKey("hk3"), Duration.ofMinutes(30));
+        assert a3.status() == Status.FAILED && proc.capture("TXN-H3").status() == Status.FAILED;
+        assert proc.authorize(new WalletPayment("TXN-H4", 1000, Currency.INR, "u19", "w-hold"), new IdempotencyKey("hk1"), Duration.ofMinutes(30))
+                .message().equals("Idempotent replay");
+
+        // One key, one hold: concurrent and later repeats under new transaction ids get the open hold back.
+        WalletPayment.topUp("w-once", Money.of(1_000, Currency.INR));
+        var pool = Executors.newFixedThreadPool(4);
+        var start = new CountDownLatch(1);
+        var attempts = IntStream.range(0, 8).mapToObj(i -> pool.submit(() -> {
+            start.await();
+            return proc.authorize(new WalletPayment("TXN-HK" + i, 100, Currency.INR, "u19", "w-once"), new IdempotencyKey("hk-once"), Duration.ofMinutes(30));
+        })).toList();
+        start.countDown();
+        var held = new HashSet<String>();
+        for(var f : attempts){
+            var r = f.get(10, TimeUnit.SECONDS);
+            assert r.status() == Status.PENDING;
+            held.add(r.transactionId());
+        }
+        pool.shutdown();
+        assert held.size() == 1 && WalletPayment.ledger().held("w-once") == 10_100 : "Holds placed: " + held;
+        // A charge under the open hold's key gets the hold back rather than debiting the wallet again.
+        var sameKey = proc.execute(new WalletPayment("TXN-HKX", 100, Currency.INR, "u19", "w-once"), new IdempotencyKey("hk-once"));
+        var sameKeyAsync = proc.executeAsync(new WalletPayment("TXN-HKY", 100, Currency.INR, "u19", "w-once"), new IdempotencyKey("hk-once"))
+                .get(10, TimeUnit.SECONDS);
+        assert sameKey.status() == Status.PENDING && held.contains(sameKey.transactionId()) && sameKeyAsync.status() == Status.PENDING;
+        assert WalletPayment.ledger().balance("w-once") == 89_900 && repo.findById("TXN-HKX").isEmpty() : "Charged past an open hold";
+        assert proc.capture(held.iterator().next()).status() == Status.SUCCESS && WalletPayment.ledger().held("w-once") == 0;
+
+        // Promo uses are committed at capture and handed back on release or expiry.
+        var chain = new PromoChain().add(PromoRule.percent("ONCE", 10).perUser(1));
+        var promoProc = new PaymentProcessor(new InMemoryTransactionRepository(), new RegistryFeeStrategy(), chain, (u, r) -> {});
+        WalletPayment.topUp("w-promo-hold", Money.of(1_000, Currency.INR));
+        assert promoProc.authorize(new WalletPayment("TXN-HP1", 100, Currency.INR, "u19p", "w-promo-hold"), null, Duration.ofMinutes(30))
+                .chargedAmount().equals(Money.of(90, Currency.INR)) && chain.uses("ONCE", "u19p") == 1;
+        assert promoProc.release("TXN-HP1") && chain.uses("ONCE", "u19p") == 0 : "Released hold kept the promo use";
+        assert promoProc.authorize(new WalletPayment("TXN-HP2", 100, Currency.INR, "u19p", "w-promo-hold"), null, Duration.ofMillis(1))
+                .status() == Status.PENDING;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(chain.uses("ONCE", "u19p") != 0 && System.nanoTime() < deadline) Thread.sleep(20); // the shared ledger sweeps every second
+        assert chain.uses("ONCE", "u19p") == 0 && promoProc.capture("TXN-HP2").status() == Status.FAILED : "Expired hold kept the promo use";
+        promoProc.authorize(new WalletPayment("TXN-HP3", 100, Currency.INR, "u19p", "w-promo-hold"), null, Duration.ofMinutes(30));
+        assert promoProc.capture("TXN-HP3").chargedAmount().equals(Money.of(90, Currency.INR)) && chain.uses("ONCE", "u19p") == 1;
+    }
+
+    static void testDoubleEntryLedger() throws Exception {
+        var dir = Files.createTempDirectory("books");
+        try {
+            var books = new DoubleEntryLedger(new FileChannelLog(dir.resolve("journal.log")), false);
+            var repo = new InMemoryTransactionRepository();
+            var fees = new RegistryFeeStrategy(); fees.register(WalletPayment.class, 2.0);
+            var proc = new PaymentProcessor(repo, RuleEngine.fixed(fees, new PercentagePromo(10)), (u, r) -> {}, books);
+            WalletPayment.topUp("w-books", Money.of(10_000, Currency.INR));
+            // 1000.00 list, 900.00 after promo, 18.00 fee: customer pays 918.00.
+            var r = proc.execute(new WalletPayment("TXN-L1", 1000, Currency.INR, "u20", "w-books"), new IdempotencyKey("lk1"));
+            assert r.chargedAmount().equals(Money.of(918, Currency.INR));
+            assert proc.refund("TXN-L1", Money.of(300, Currency.INR)).status() == Status.SUCCESS;
+            assert proc.refund("TXN-L1", Money.of(700, Currency.INR)).status() == Status.FAILED;
+
+            String clearing = DoubleEntryLedger.clearing("Wallet");
+            assert books.balance(clearing, Currency.INR) == 61_800 : "clearing " + books.balance(clearing, Currency.INR);
+            assert books.balance(DoubleEntryLedger.PROMOTIONS, Currency.INR) == 10_000;
+            assert books.balance(DoubleEntryLedger.MERCHANT_PAYABLE, Currency.INR) == -70_000;
+            assert books.balance(DoubleEntryLedger.FEE_REVENUE, Currency.INR) == -1_800;
+            assert books.trialBalance(Currency.INR) == 0 && books.journal().size() == 2;
+
+            boolean threw = false;
+            try { books.post("bad", Currency.INR, new Posting("a", 5), new Posting("b", -4)); } catch(IllegalArgumentException e){ threw = true; }
+            assert threw && books.journal().size() == 2 : "Unbalanced entry accepted";
+
+            var pool = Executors.newFixedThreadPool(4);
+            var futures = new ArrayList<Future<?>>();
+            for(int i = 0; i < 2_000; i++){
+                int n = i;
+                futures.add(pool.submit(() -> books.post("adj-" + n, Currency.USD, new Posting("cash", 3), new Posting("sales", -3))));
+            }
+            for(var f : futures) f.get(30, TimeUnit.SECONDS);
+            pool.shutdown();
+            assert books.balance("cash", Currency.USD) == 6_000 && books.trialBalance(Currency.USD) == 0;
+            assert books.batchesCommitted() <= 2_002;
+            var seqs = books.journal().stream().mapToLong(JournalEntry::sequence).toArray();
+            for(int i = 0; i < seqs.length; i++) assert seqs[i] == i : "Journal out of sequence at " + i;
+            books.close();
+
+            var reopened = new DoubleEntryLedger(new FileChannelLog(dir.resolve("journal.log")), false);
+            assert reopened.journal().size() == 2_002 && reopened.balance(clearing, Currency.INR) == 61_800;
+            assert reopened.balance("sales", Currency.USD) == -6_000 && reopened.trialBalance(Currency.INR) == 0;
+            assert reopened.post("next", Currency.INR, new Posting("a", 1), new Posting("b", -1)).sequence() == 2_002;
+            reopened.close();
+
+            // Each partial refund posts under its own reference, which is also its refund id.
+            var split = new DoubleEntryLedger();
+            var splitProc = new PaymentProcessor(new InMemoryTransactionRepository(), RuleEngine.fixed(new RegistryFeeStrategy(), new NoPromo()), (u, rc) -> {}, split);
+            WalletPayment.topUp("w-split", Money.of(1_000, Currency.INR));
+            assert splitProc.execute(new WalletPayment("TXN-L2", 100, Currency.INR, "u20", "w-split"), new IdempotencyKey("lk2")).status() == Status.SUCCESS;
+            var first = splitProc.refund("TXN-L2", Money.of(30, Currency.INR));
+            var second = splitProc.refund("TXN-L2", Money.of(30, Currency.INR));
+            var refs = split.journal().stream().map(JournalEntry::reference).toList();
+            assert !first.refundId().equals(second.refundId()) && refs.equals(List.of("TXN-L2", first.refundId(), second.refundId())) : refs.toString();
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    static void testLedgerFailedBatchIsRolledBack() throws Exception {
+        var dir = Files.createTempDirectory("books-fail");
+        try {
+            var failFlush = new AtomicBoolean();
+            var books = new DoubleEntryLedger(failingFlush(new FileChannelLog(dir.resolve("journal.log")), failFlush), false);
+            books.post("ok-1", Currency.INR, new Posting("a", 5), new Posting("b", -5));
+            failFlush.set(true);
+            boolean threw = false;
+            try { books.post("lost", Currency.INR, new Posting("a", 7), new Posting("b", -7)); }
+            catch(UncheckedIOException e){ threw = true; }
+            assert threw && books.balance("a", Currency.INR) == 5 : "Failed post applied";
+            assert books.post("ok-2", Currency.INR, new Posting("a", 1), new Posting("b", -1)).sequence() == 1;
+            books.close();
+
+            var reopened = new DoubleEntryLedger(new FileChannelLog(dir.resolve("journal.log")), false);
+            var refs = reopened.journal().stream().map(JournalEntry::reference).toList();
+            assert refs.equals(List.of("ok-1", "ok-2")) : "Journal replayed " + refs;
+            assert reopened.balance("a", Currency.INR) == 6 && reopened.trialBalance(Currency.INR) == 0;
+            reopened.close();
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    static void testExecuteAsyncKeepsSlowCallsInFlight() throws Exception {
+        var repo = new InMemoryTransactionRepository();
+        var fees = new RegistryFeeStrategy(); fees.register(UPIPayment.class, 0.5);
+        var notified = new AtomicInteger();
+        var proc = new PaymentProcessor(repo, fees, new NoPromo(), (u, r) -> notified.incrementAndGet())
+                .usingProvider(UPIPayment.class, new SimulatedProvider(ProviderProfile.instant(0, "declined").withLatency(LatencyModel.fixed(Duration.ofMillis(200)))))
+                .usingProvider(CreditCardPayment.class, new SimulatedProvider(ProviderProfile.instant(1, "Do not honour").withLatency(LatencyModel.uniform(Duration.ofMillis(5), Duration.ofMillis(20)))));
+
+        // 2,000 calls of 200 ms each: serially 400 s, overlapped well under the timeout.
+        int n = 2_000;
+        long t0 = System.nanoTime();
+        var futures = new ArrayList<CompletableFuture<PaymentResult>>(n);
+        for(int i = 0; i < n; i++)
+            futures.add(proc.executeAsync(new UPIPayment("TXN-A" + i, 100, Currency.INR, "u21", "a@oksbi"), new IdempotencyKey("ak" + i)));
+        long submitMillis = (System.nanoTime() - t0) / 1_000_000;
+        assert submitMillis < 200 * 5 : "executeAsync blocked the caller for " + submitMillis + " ms";
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        for(var f : futures) assert f.get().status() == Status.SUCCESS && f.get().chargedAmount().equals(Money.of(100.50, Currency.INR));
+        assert repo.findById("TXN-A1999").isPresent() && notified.get() == n;
+
+        // A duplicate of an in-flight key shares the first call's future; a later one replays.
+        var first = proc.executeAsync(new UPIPayment("TXN-AD", 100, Currency.INR, "u21", "a@oksbi"), new IdempotencyKey("ak-dup"));
+        var dup = proc.executeAsync(new UPIPayment("TXN-AD2", 100, Currency.INR, "u21", "a@oksbi"), new IdempotencyKey("ak-dup"));
+        assert first == dup : "Duplicate started a second charge";
+        assert first.get(10, TimeUnit.SECONDS).status() == Status.SUCCESS && repo.findById("TXN-AD2").isEmpty();
+        var replay = proc.executeAsync(new UPIPayment("TXN-AD3", 100, Currency.INR, "u21", "a@oksbi"), new IdempotencyKey("ak-dup"));
+        assert replay.isDone() && replay.get().message().equals("Idempotent replay");
+
+        // A decline fails the payment without recording it, and frees the key for a retry.
+        var card = new CreditCardPayment("TXN-AC", 100, Currency.INR, "u21", "A", "4111111111111111", YearMonth.now().plusYears(1), "123");
+        var declined = proc.executeAsync(card, new IdempotencyKey("ak-card")).get(10, TimeUnit.SECONDS);
+        assert declined.status() == Status.FAILED && declined.message().equals("Do not honour") && repo.findById("TXN-AC").isEmpty();
+
+        // A provider that throws instead of answering fails the future, not the caller, and frees the key.
+        proc.usingProvider(CreditCardPayment.class, new PaymentProvider(){
+            @Override public CompletableFuture<ProviderResponse> authorize(Payment p, long amount){ throw new IllegalStateException("provider down"); }
+            @Override public CompletableFuture<ProviderResponse> capture(Payment p, String auth, long amount){ throw new AssertionError(); }
+            @Override public CompletableFuture<ProviderResponse> refund(String id, long amount){ throw new AssertionError(); }
+        });
+        var brokenKey = new IdempotencyKey("ak-broken");
+        for(var key : new IdempotencyKey[]{ null, brokenKey }){
+            var failed = proc.executeAsync(card, key);
+            assert failed.isCompletedExceptionally() : "Synchronous failure escaped the future";
+            try { failed.join(); assert false; } catch(CompletionException e){ assert e.getCause().getMessage().equals("provider down"); }
+        }
+        proc.usingProvider(CreditCardPayment.class, new SimulatedProvider(ProviderProfile.instant(0, "declined")));
+        assert proc.executeAsync(card, brokenKey).get(10, TimeUnit.SECONDS).status() == Status.SUCCESS : "Key stayed claimed";
+
+        // The log-normal model lands its median and p99 where configured.
+        var model = LatencyModel.logNormal(Duration.ofMillis(80), Duration.ofMillis(900));
+        var rnd = new Random(21);
+        long[] samples = new long[20_000];
+        for(int i = 0; i < samples.length; i++) samples[i] = model.sampleMicros(rnd);
+        Arrays.sort(samples);
+        long p50 = samples[samples.length / 2], p99 = samples[(int) (samples.length * 0.99)];
+        assert p50 > 70_000 && p50 < 90_000 && p99 > 750_000 && p99 < 1_100_000 : "p50=" + p50 + " p99=" + p99;
+    }
+
+    static void testThreadPerTaskInFlight() throws Exception {
+        // Every payment blocks its own thread on a 300 ms provider; they must all be in flight together.
+        var load = Benchmarks.inFlightLoad(1_000, Duration.ofMillis(300));
+        assert load[0] >= 900 : "Peak in flight " + load[0];
+        assert load[1] < 20_000 : "Took " + load[1] + " ms";
+
+        // Ledger posting and notification run in the payment's scope and finish before submit's future does.
+        var notified = new ConcurrentLinkedQueue<String>();
+        var books = new DoubleEntryLedger();
+        var repo = new InMemoryTransactionRepository();
+        var proc = new PaymentProcessor(repo, RuleEngine.fixed(new RegistryFeeStrategy(), new NoPromo()), (u, r) -> notified.add(r.transactionId()), books)
+                .usingProvider(UPIPayment.class, new SimulatedProvider(ProviderProfile.instant(0, "declined").withLatency(LatencyModel.fixed(Duration.ofMillis(20)))))
+                .usingVirtualThreads();
+        var r = proc.submit(new UPIPayment("TXN-V1", 100, Currency.INR, "u22", "a@oksbi"), new IdempotencyKey("vk1")).get(10, TimeUnit.SECONDS);
+        assert r.status() == Status.SUCCESS && notified.contains("TXN-V1") && books.journal().size() == 1;
+        var rf = proc.submitRefund("TXN-V1", Money.of(40, Currency.INR)).get(10, TimeUnit.SECONDS);
+        assert rf.status() == Status.SUCCESS && books.journal().size() == 2 && notified.size() == 2;
+
+        // A side step failing after the save is reported on its own; the charge stands and its key replays it.
+        var reported = new ConcurrentLinkedQueue<Throwable>();
+        var flaky = new PaymentProcessor(repo, RuleEngine.fixed(new RegistryFeeStrategy(), new NoPromo()), (u, rc) -> { throw new IllegalStateException("notifier down"); }, books)
+                .usingProvider(UPIPayment.class, new SimulatedProvider(ProviderProfile.instant(0, "declined")))
+                .usingVirtualThreads().onSideStepFailure(reported::add);
+        var charged = flaky.submit(new UPIPayment("TXN-V2", 100, Currency.INR, "u22", "a@oksbi"), new IdempotencyKey("vk2")).get(10, TimeUnit.SECONDS);
+        assert charged.status() == Status.SUCCESS && repo.findById("TXN-V2").isPresent() : "Notification failure failed a committed charge";
+        assert flaky.sideStepFailures() == 1 && reported.peek().getMessage().equals("notifier down");
+        var again = flaky.submit(new UPIPayment("TXN-V2", 100, Currency.INR, "u22", "a@oksbi"), new IdempotencyKey("vk2")).get(10, TimeUnit.SECONDS);
+        assert again.status() == Status.SUCCESS && again.message().equals("Idempotent replay") && flaky.sideStepFailures() == 1;
+
+        // A failed ledger post does not cancel or skip the customer's notification.
+        var dir = Files.createTempDirectory("books-down");
+        try {
+            var down = new DoubleEntryLedger(failingFlush(new FileChannelLog(dir.resolve("journal.log")), new AtomicBoolean(true)), false);
+            var told = new ConcurrentLinkedQueue<String>();
+            var unbooked = new PaymentProcessor(repo, RuleEngine.fixed(new RegistryFeeStrategy(), new NoPromo()), (u, rc) -> told.add(rc.transactionId()), down)
+                    .usingProvider(UPIPayment.class, new SimulatedProvider(ProviderProfile.instant(0, "declined")))
+                    .usingVirtualThreads();
+            var booked = unbooked.submit(new UPIPayment("TXN-V3", 100, Currency.INR, "u22", "a@oksbi"), new IdempotencyKey("vk3")).get(10, TimeUnit.SECONDS);
+            assert booked.status() == Status.SUCCESS && told.contains("TXN-V3") : "Ledger failure cancelled the notification";
+            assert unbooked.sideStepFailures() == 1;
+            down.close();
+        } finally {
+            deleteTree(dir);
+        }
+
+        // In a shutdown-on-failure scope a failing subtask cancels its running siblings and surfaces.
+        var exec = PaymentThreads.perTask("scope-test");
+        var started = new CountDownLatch(1);
+        var interrupted = new CountDownLatch(1);
+        boolean threw = false;
+        try(var scope = new PaymentScope(exec, true)){
+            scope.fork(() -> {
+                started.countDown();
+                try { Thread.sleep(10_000); } catch(InterruptedException e){ interrupted.countDown(); }
+            });
+            scope.fork(() -> {
+                try { started.await(); } catch(InterruptedException e){ return; }
+                throw new IllegalStateException("notifier down");
+            });
+            scope.join().throwIfFailed();
+        } catch(IllegalStateException e){ threw = e.getMessage().equals("notifier down"); }
+        assert threw && interrupted.await(5, TimeUnit.SECONDS) : "Sibling not cancelled";
+
+        // Otherwise every subtask runs and every failure is kept.
+        var ran = new AtomicInteger();
+        try(var scope = new PaymentScope(exec, false)){
+            scope.fork(() -> { throw new IllegalStateException("ledger down"); });
+            scope.fork(() -> { throw new IllegalStateException("notifier down"); });
+            scope.fork(ran::incrementAndGet);
+            assert scope.join().failures().size() == 2 && ran.get() == 1 : "Subtasks cancelled each other";
+        }
+        exec.shutdown();
+    }
+
+    static void testProviderSimulatorProfiles() throws Exception {
+        // Same seed, same thread: the same outcomes, with no shared RNG.
+        var a = new SimulatedProvider(ProviderProfile.card().withLatency(LatencyModel.NONE), 7, System::currentTimeMillis);
+        var b = new SimulatedProvider(ProviderProfile.card().withLatency(LatencyModel.NONE), 7, System::currentTimeMillis);
+        int declines = 0;
+        for(int i = 0; i < 20_000; i++){
+            boolean x = a.authorize(null, 100).get().approved(), y = b.authorize(null, 100).get().approved();
+            assert x == y : "Seeded runs diverged at " + i;
+            if(!x) declines++;
+        }
+        assert declines > 450 && declines < 750 : "Card decline rate off: " + declines; // 3% of 20k
+        assert a.stats().equals(new ProviderStats(20_000, 20_000 - declines, declines, 0, 0)) : a.stats().toString();
+
+        // Percentile latency lands on its configured points.
+        var model = LatencyModel.percentiles(Duration.ofMillis(100), Duration.ofMillis(300), Duration.ofMillis(1_000), Duration.ofMillis(4_000));
+        var rnd = new SplittableRandom(23);
+        long[] s = new long[100_000];
+        for(int i = 0; i < s.length; i++) s[i] = model.sampleMicros(rnd);
+        Arrays.sort(s);
+        assert Math.abs(s[50_000] - 100_000) < 5_000 && Math.abs(s[90_000] - 300_000) < 15_000 && Math.abs(s[99_000] - 1_000_000) < 80_000
+                : "p50=" + s[50_000] + " p90=" + s[90_000] + " p99=" + s[99_000];
+
+        // Calls slower than the timeout fail at the timeout, not at the sampled latency.
+        var slow = new SimulatedProvider(ProviderProfile.instant(0, "declined").withLatency(LatencyModel.fixed(Duration.ofSeconds(30)))
+                .withTimeout(Duration.ofMillis(50)));
+        long t0 = System.nanoTime();
+        var timedOut = slow.authorize(null, 100).get(5, TimeUnit.SECONDS);
+        assert !timedOut.approved() && timedOut.message().contains("timed out") && (System.nanoTime() - t0) < 2_000_000_000L;
+        assert slow.stats().timedOut() == 1;
+
+        // Burst outages: every call inside a window fails, and windows come and go with the clock.
+        var now = new AtomicLong(0);
+        var flaky = new SimulatedProvider(ProviderProfile.instant(0, "declined").withOutages(Duration.ofMinutes(10), Duration.ofSeconds(30)), 11, now::get);
+        int down = 0, up = 0, transitions = 0; boolean wasDown = false;
+        for(int sec = 0; sec < 24 * 3600; sec++){
+            now.set(sec * 1_000L);
+            boolean ok = flaky.authorize(null, 100).get().approved();
+            if(ok) up++; else down++;
+            if(!ok && !wasDown) transitions++;
+            wasDown = !ok;
+        }
+        // ~144 outages a day of ~30 s each: roughly 5% of the seconds, in bursts rather than scattered.
+        assert transitions > 90 && transitions < 200 && down > 2_000 && down < 7_000 : "outages=" + transitions + " down=" + down;
+        assert flaky.stats().unavailable() == down && up + down == 24 * 3600;
+
+        // A wallet service profile is consulted before the ledger debit when one is registered.
+        var walletClock = new AtomicLong(0);
+        var proc = new PaymentProcessor(new InMemoryTransactionRepository(), new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {})
+                .usingProvider(WalletPayment.class, new SimulatedProvider(ProviderProfile.wallet().withLatency(LatencyModel.NONE).withOutages(Duration.ofMillis(1), Duration.ofDays(1)),
+                        3, walletClock::get));
+        walletClock.set(60_000); // inside the first outage
+        WalletPayment.topUp("w-sim", Money.of(100, Currency.INR));
+        var r = proc.execute(new WalletPayment("TXN-S1", 50, Currency.INR, "u23", "w-sim"), new IdempotencyKey("sk1"));
+        assert r.status() == Status.FAILED && r.message().equals("Provider unavailable") && WalletPayment.ledger().balance("w-sim") == 10_000 : "Wallet outage ignored: " + r;
+    }
+
+    static void testCircuitBreakerAndBulkhead() throws Exception {
+        var now = new AtomicLong(0);
+        var healthy = new AtomicBoolean(false);
+        var pending = new ConcurrentLinkedQueue<CompletableFuture<ProviderResponse>>();
+        PaymentProvider acquirer = new PaymentProvider(){
+            @Override public CompletableFuture<ProviderResponse> authorize(Payment p, long amount){
+                if(amount == 0){ var f = new CompletableFuture<ProviderResponse>(); pending.add(f); return f; } // parked until the test answers
+                return CompletableFuture.completedFuture(healthy.get() ? ProviderResponse.approved("A") : ProviderResponse.unavailable("Provider timed out"));
+            }
+            @Override public CompletableFuture<ProviderResponse> capture(Payment p, String auth, long amount){ return CompletableFuture.completedFuture(ProviderResponse.approved("C")); }
+            @Override public CompletableFuture<ProviderResponse> refund(String id, long amount){ return CompletableFuture.completedFuture(ProviderResponse.approved("R")); }
+        };
+        var config = new CircuitBreaker.Config(10, 5, 0.5, Duration.ofMillis(500), 0.8, Duration.ofSeconds(30), 2);
+        var card = new GuardedProvider("Card", acquirer, config, 3, now::get);
+
+        // Failures past the threshold open the breaker; then calls fail fast without reaching the acquirer.
+        for(int i = 0; i < 5; i++) assert !card.authorize(null, 100).get().approved();
+        assert card.breaker().state() == CircuitBreaker.State.OPEN;
+        var rejected = card.authorize(null, 100).get();
+        assert rejected.transientFailure() && rejected.message().equals("Circuit open for Card") : rejected.toString();
+
+        // Ordinary declines are answers, not failures.
+        var declines = new GuardedProvider("UPI", new SimulatedProvider(ProviderProfile.instant(1, "declined")), config, 3, now::get);
+        for(int i = 0; i < 20; i++) declines.authorize(null, 100).get();
+        assert declines.breaker().state() == CircuitBreaker.State.CLOSED;
+
+        // After openFor, a limited number of probes go through; a failing probe reopens it.
+        now.set(30_000);
+        assert !card.authorize(null, 100).get().approved() && card.breaker().state() == CircuitBreaker.State.OPEN;
+        now.set(60_000);
+        healthy.set(true);
+        assert card.authorize(null, 100).get().approved() && card.breaker().state() == CircuitBreaker.State.HALF_OPEN;
+        assert card.authorize(null, 100).get().approved() && card.breaker().state() == CircuitBreaker.State.CLOSED;
+
+        // Calls still outstanding count toward the bulkhead, and slow answers toward the window.
+        for(int i = 0; i < 3; i++) card.authorize(null, 0);
+        assert card.authorize(null, 0).get().message().equals("Card rail busy"); // bulkhead of 3 is full
+        now.addAndGet(1_000);
+        for(int i = 0; i < 2; i++) pending.poll().complete(ProviderResponse.approved("late"));
+        for(int i = 0; i < 3; i++) card.authorize(null, 100).get();
+        assert card.breaker().state() == CircuitBreaker.State.CLOSED; // 2 slow of 5
+        for(int i = 0; i < 5; i++) card.authorize(null, 100).get();
+        pending.poll().complete(ProviderResponse.approved("late")); // slides out the oldest slow call
+        var m = card.health();
+        assert m.breaker().state() == CircuitBreaker.State.CLOSED && m.breaker().windowCalls() == 10
+                && Math.abs(m.breaker().slowCallRate() - 0.2) < 1e-9 && m.bulkhead().inUse() == 0 && m.bulkhead().rejected() == 1 : m.toString();
+        assert m.breaker().timesOpened() == 2 && m.breaker().rejected() == 1 : m.toString();
+
+        // Slow calls alone trip it; a straggler from before the trip does not count toward the probes.
+        var b = new CircuitBreaker("Wallet", config, now::get);
+        long straggler = b.tryAcquire();
+        for(int i = 0; i < 5; i++) b.onComplete(b.tryAcquire(), false, 800);
+        assert b.state() == CircuitBreaker.State.OPEN;
+        now.addAndGet(30_000);
+        assert b.tryAcquire() >= 0 && b.tryAcquire() >= 0 && b.tryAcquire() < 0 : "Probes not limited";
+        b.onComplete(straggler, true, 0);
+        assert b.state() == CircuitBreaker.State.HALF_OPEN : "Stale outcome counted";
+
+        // Through the processor: each rail has its own cap, and health is reported per rail.
+        var proc = new PaymentProcessor(new InMemoryTransactionRepository(), new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {})
+                .usingProvider(CreditCardPayment.class, card)
+                .usingProvider(UPIPayment.class, declines);
+        assert proc.providerHealth().size() == 2;
+    }
+
+    static void testRetriesAndHedging() throws Exception {
+        // A provider that fails the first `flaky` calls transiently, recording the key of each authorization.
+        var keys = new ConcurrentLinkedQueue<IdempotencyKey>();
+        var flaky = new AtomicInteger(2);
+        var slowFirst = new AtomicBoolean(false);
+        PaymentProvider upi = new PaymentProvider(){
+            @Override public CompletableFuture<ProviderResponse> authorize(Payment p, long amount){ throw new AssertionError("Key dropped"); }
+            @Override public CompletableFuture<ProviderResponse> authorize(Payment p, long amount, IdempotencyKey key){
+                keys.add(key);
+                if(amount == 1) return CompletableFuture.completedFuture(ProviderResponse.declined("Insufficient funds"));
+                if(slowFirst.getAndSet(false)) return new CompletableFuture<>(); // never answers
+                if(flaky.getAndDecrement() > 0) return CompletableFuture.completedFuture(ProviderResponse.unavailable("UPI switch timeout"));
+                return CompletableFuture.completedFuture(ProviderResponse.approved("A-" + key.value()));
+            }
+            @Override public CompletableFuture<ProviderResponse> capture(Payment p, String auth, long amount){ return CompletableFuture.completedFuture(ProviderResponse.approved(auth)); }
+            @Override public CompletableFuture<ProviderResponse> refund(String id, long amount){ return CompletableFuture.completedFuture(ProviderResponse.approved("R")); }
+        };
+
+        // Transient failures are retried with the same key; declines come straight back.
+        var retrying = new RetryingProvider(upi, RetryPolicy.backoff(4, Duration.ofMillis(1), Duration.ofMillis(5)));
+        var proc = new PaymentProcessor(new InMemoryTransactionRepository(), new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {})
+                .usingProvider(UPIPayment.class, retrying);
+        var r = proc.execute(new UPIPayment("TXN-RT1", 100, Currency.INR, "u25", "u25@oksbi"), new IdempotencyKey("rk1"));
+        assert r.status() == Status.SUCCESS : r.toString();
+        assert keys.size() == 3 && keys.stream().allMatch(k -> k.value().equals("rk1")) : keys.toString();
+        keys.clear();
+        assert !retrying.authorize(null, 1, new IdempotencyKey("rk2")).get(5, TimeUnit.SECONDS).approved() && keys.size() == 1;
+        assert retrying.metrics().retries() == 2;
+
+        // Full jitter never exceeds the capped exponential.
+        var policy = RetryPolicy.backoff(10, Duration.ofMillis(10), Duration.ofMillis(200));
+        var rnd = new SplittableRandom(1);
+        for(int n = 1; n < 10; n++)
+            for(int i = 0; i < 1_000; i++) assert policy.backoffMicros(n, rnd) <= Math.min(200_000, 10_000L << (n - 1));
+
+        // The budget stops retries once spent: with no ratio, only the per-second allowance of 2 is left.
+        flaky.set(Integer.MAX_VALUE);
+        keys.clear();
+        var stingy = new RetryingProvider(upi, RetryPolicy.backoff(3, Duration.ofMillis(1), Duration.ofMillis(1)).withBudget(0, 2), () -> 0);
+        for(int i = 0; i < 5; i++) assert stingy.authorize(null, 100, new IdempotencyKey("b" + i)).get(5, TimeUnit.SECONDS).transientFailure();
+        var m = stingy.metrics();
+        assert keys.size() == 7 && m.retries() == 2 && m.budgetExhausted() == 4 : m + " calls=" + keys.size();
+
+        // Hedging: an authorization stuck past the hedge delay gets a second call, same key, and the first answer wins.
+        flaky.set(0);
+        keys.clear();
+        slowFirst.set(true);
+        var hedging = new RetryingProvider(upi, RetryPolicy.backoff(1, Duration.ofMillis(1), Duration.ofMillis(1)).withHedging(Duration.ofMillis(20)));
+        var hedged = hedging.authorize(null, 100, new IdempotencyKey("hk1")).get(5, TimeUnit.SECONDS);
+        assert hedged.approved() && hedged.reference().equals("A-hk1") && keys.size() == 2 : keys.toString();
+        assert hedging.metrics().hedges() == 1 && hedging.metrics().hedgeWins() == 1;
+        // A fast answer cancels the hedge before it fires.
+        for(int i = 0; i < 10; i++) hedging.authorize(null, 100, new IdempotencyKey("hk" + (i + 2))).get();
+        Thread.sleep(50);
+        assert hedging.metrics().hedges() == 1 : hedging.metrics().toString();
+
+        // An approval that loses the race is voided, unless the provider answered it with the winning authorization.
+        var voided = new ConcurrentLinkedQueue<String>();
+        var primary = new AtomicReference<CompletableFuture<ProviderResponse>>();
+        PaymentProvider twoAnswers = new PaymentProvider(){
+            @Override public CompletableFuture<ProviderResponse> authorize(Payment p, long amount){
+                var slow = new CompletableFuture<ProviderResponse>();
+                return primary.compareAndSet(null, slow) ? slow : CompletableFuture.completedFuture(ProviderResponse.approved("A-hedge"));
+            }
+            @Override public CompletableFuture<ProviderResponse> capture(Payment p, String auth, long amount){ throw new AssertionError(); }
+            @Override public CompletableFuture<ProviderResponse> refund(String id, long amount){ throw new AssertionError(); }
+            @Override public CompletableFuture<ProviderResponse> voidAuthorization(Payment p, String auth){
+                voided.add(auth);
+                return CompletableFuture.completedFuture(ProviderResponse.approved("V-" + auth));
+            }
+        };
+        var racing = new RetryingProvider(twoAnswers, RetryPolicy.backoff(1, Duration.ofMillis(1), Duration.ofMillis(1)).withHedging(Duration.ofMillis(20)));
+        assert racing.authorize(null, 100, null).get(5, TimeUnit.SECONDS).reference().equals("A-hedge");
+        primary.getAndSet(null).complete(ProviderResponse.approved("A-primary"));
+        assert List.copyOf(voided).equals(List.of("A-primary")) && racing.metrics().losersVoided() == 1 : voided.toString();
+        assert racing.authorize(null, 100, null).get(5, TimeUnit.SECONDS).reference().equals("A-hedge");
+        primary.getAndSet(null).complete(ProviderResponse.approved("A-hedge"));
+        assert voided.size() == 1 && racing.metrics().losersVoided() == 1 && racing.metrics().calls() == 2 : "Voided the winning authorization";
+
+        // A wallet service is asked under the caller's key, like the card and UPI rails.
+        keys.clear();
+        WalletPayment.topUp("w-retry", Money.of(500, Currency.INR));
+        var wallets = new PaymentProcessor(new InMemoryTransactionRepository(), new RegistryFeeStrategy(), new NoPromo(), (u, rc) -> {})
+                .usingProvider(WalletPayment.class, new RetryingProvider(upi, RetryPolicy.defaults()));
+        var w = wallets.execute(new WalletPayment("TXN-RTW", 100, Currency.INR, "u25", "w-retry"), new IdempotencyKey("rkw"));
+        assert w.status() == Status.SUCCESS && List.copyOf(keys).equals(List.of(new IdempotencyKey("rkw"))) : w + " " + keys;
+    }
+
+    static int segmentFiles(Path dir) throws IOException {
+        try(var files = Files.list(dir)){ return (int) files.filter(f -> f.toString().endsWith(".log")).count(); }
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try(var files = Files.walk(dir)){
+            for(var f : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(f);
+        }
     }
 
     static void fail(String name, Throwable t){ System.out.println("FAIL " + name + ": " + t); }
 }
+
+// ======= Micro-benchmarks (no frameworks) =======
+final class Benchmarks {
+    static volatile long sink; // defeats dead-code elimination
+
+    /**
+     * {@code bench} runs everything; {@code bench store 10000000} sizes the repository comparison (give it -Xmx)
+     * {@code bench inflight 20000} the thread-per-task load and {@code bench hedge 4000} the hedging run.
+     */
+    static void runAll(String... args){
+        String only = args.length > 0 ? args[0] : "";
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        if(only.isEmpty()){ benchMoneyPath(); benchValidation(); benchBatchLuhn(); benchBinLookup(); }
+        if(only.isEmpty() || only.equals("store")) benchRepositories(size > 0 ? size : 200_000);
+        if(only.isEmpty() || only.equals("inflight")) benchInFlight(size > 0 ? size : 10_000);
+        if(only.isEmpty() || only.equals("hedge")) benchHedging(size > 0 ? size : 4_000);
+    }
+
+    /** Runs {@code op} for warm-up then measured rounds and prints the best ns/op. */
+    static void measure(String name, int opsPerRound, java.util.function.LongSupplier op){
+        for(int i=0;i<5;i++) sink += op.getAsLong();
+        long best = Long.MAX_VALUE;
+        for(int i=0;i<10;i++){
+            long t0 = System.nanoTime();
+            sink += op.getAsLong();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        System.out.printf(Locale.US, "%-40s %10.2f ns/op%n", name, (double) best / opsPerRound);
+    }
+
+    // Legacy double path: promo, fee and charge each rounded through round2.
+    static void benchMoneyPath(){
+        final int n = 1_000_000;
+        double[] amounts = new double[n]; long[] minors = new long[n];
+        var rnd = new SplittableRandom(7);
+        for(int i=0;i<n;i++){ amounts[i] = rnd.nextInt(1, 10_000_000) / 100.0; minors[i] = Money.toMinor(amounts[i], Currency.INR); }
+        measure("charge (double + round2)", n, () -> {
+            double acc = 0;
+            for(double a : amounts){
+                double discounted = a * (1.0 - 10.0/100.0);
+                double fee = round2(discounted * 2.0 / 100.0);
+                acc += round2(discounted + fee);
+            }
+            return (long) acc;
+        });
+        final long promoPpm = Money.ppm(10.0), feePpm = Money.ppm(2.0);
+        measure("charge (long minor units)", n, () -> {
+            long acc = 0;
+            for(long a : minors){
+                long discounted = a - Money.percentOf(a, promoPpm);
+                acc += discounted + Money.percentOf(discounted, feePpm);
+            }
+            return acc;
+        });
+    }
+    private static double round2(double v){ return Math.round(v * 100.0)/100.0; }
+
+    /**
+     * Submits {@code n} UPI payments in thread-per-task mode against a provider that answers after
+     * {@code latency}; returns {peak payments in flight at the provider, wall-clock millis}.
+     */
+    static long[] inFlightLoad(int n, Duration latency) throws Exception {
+        var current = new AtomicInteger(); var peak = new AtomicInteger();
+        var sim = new SimulatedProvider(ProviderProfile.instant(0, "declined").withLatency(LatencyModel.fixed(latency)));
+        PaymentProvider counting = new PaymentProvider() {
+            @Override public CompletableFuture<ProviderResponse> authorize(Payment p, long amount){
+                peak.accumulateAndGet(current.incrementAndGet(), Math::max);
+                return sim.authorize(p, amount).whenComplete((r, e) -> current.decrementAndGet());
+            }
+            @Override public CompletableFuture<ProviderResponse> capture(Payment p, String auth, long amount){ return sim.capture(p, auth, amount); }
+            @Override public CompletableFuture<ProviderResponse> refund(String id, long amount){ return sim.refund(id, amount); }
+        };
+        var proc = new PaymentProcessor(new InMemoryTransactionRepository(), new RegistryFeeStrategy(), new NoPromo(), (u, r) -> {})
+                .usingProvider(UPIPayment.class, counting).usingVirtualThreads();
+        long t0 = System.nanoTime();
+        var results = new ArrayList<Future<PaymentResult>>(n);
+        for(int i=0;i<n;i++) results.add(proc.submit(new UPIPayment("TXN-VT" + i, 100, Currency.INR, "load", "load@oksbi"), new IdempotencyKey("vt" + i)));
+        for(var r : results) if(r.get(120, TimeUnit.SECONDS).status() != Status.SUCCESS) throw new IllegalStateException("Load payment failed: " + r.get());
+        return new long[]{ peak.get(), (System.nanoTime() - t0) / 1_000_000 };
+    }
+
+    static void benchInFlight(int n){
+        try {
+            var r = inFlightLoad(n, Duration.ofSeconds(5)); // long enough that every thread has started before the first answer
+            System.out.printf(Locale.US, "in-flight load (%s threads) n=%,d peak in flight=%,d wall=%,d ms%n",
+                    PaymentThreads.virtualThreadsAvailable() ? "virtual" : "platform", n, r[0], r[1]);
+        } catch(Exception e){ throw new IllegalStateException(e); }
+    }
+
+    // UPI collect latency, scaled down 100x, with and without hedging at the observed p95.
+    static void benchHedging(int n){
+        var upi = LatencyModel.percentiles(Duration.ofMillis(6), Duration.ofMillis(15), Duration.ofMillis(40), Duration.ofMillis(90));
+        var profile = ProviderProfile.instant(0, "declined").withLatency(upi);
+        var plain = new SimulatedProvider(profile, 9, System::currentTimeMillis);
+        var hedged = new RetryingProvider(new SimulatedProvider(profile, 9, System::currentTimeMillis),
+                RetryPolicy.backoff(1, Duration.ZERO, Duration.ZERO).withHedging(Duration.ofMillis(15)));
+        latencies("authorize (UPI, no hedging)", plain, n);
+        latencies("authorize (UPI, hedged at p95)", hedged, n);
+        var m = hedged.metrics();
+        System.out.printf(Locale.US, "  hedges=%,d (%.1f%%) won=%,d voided=%,d%n", m.hedges(), 100.0 * m.hedges() / m.calls(), m.hedgeWins(), m.losersVoided());
+    }
+    private static void latencies(String name, PaymentProvider provider, int n){
+        long[] micros = new long[n];
+        for(int base = 0; base < n; base += 200){ // 200 at a time, as a busy rail would see them
+            int batch = Math.min(200, n - base);
+            var calls = new ArrayList<CompletableFuture<ProviderResponse>>(batch);
+            for(int i = 0; i < batch; i++){
+                int slot = base + i;
+                long t0 = System.nanoTime();
+                calls.add(provider.authorize(null, 100, new IdempotencyKey("h" + slot))
+                        .whenComplete((r, e) -> micros[slot] = (System.nanoTime() - t0) / 1_000));
+            }
+            calls.forEach(CompletableFuture::join);
+        }
+        Arrays.sort(micros);
+        System.out.printf(Locale.US, "%-40s p50=%,d us p99=%,d us max=%,d us%n", name, micros[n / 2], micros[n * 99 / 100], micros[n - 1]);
+    }
+
+    // One binary search per card over a synthetic table of 20k disjoint ranges.
+    static void benchBinLookup(){
+        var csv = new StringBuilder();
+        for(int i=0;i<20_000;i++) csv.append(String.format(Locale.ROOT, "%08d,%08d,VISA,Bank %d,%s%n", 40_000_000 + i * 500, 40_000_000 + i * 500 + 399, i % 300, i % 2 == 0 ? "DEBIT" : "CREDIT"));
+        final BinTable table;
+        try {
+            var file = Files.createTempFile("bins", ".csv");
+            Files.writeString(file, csv);
+            table = BinTable.load(file);
+            Files.delete(file);
+        } catch(IOException e){ throw new UncheckedIOException(e); }
+        final int n = 1_000_000;
+        var rnd = new SplittableRandom(17);
+        int[] bins = new int[n];
+        for(int i=0;i<n;i++) bins[i] = 40_000_000 + rnd.nextInt(10_000_000);
+        measure("BinTable.lookup (20k ranges)", n, () -> {
+            long acc = 0;
+            for(int b : bins) acc += table.lookup(b).type().ordinal();
+            return acc;
+        });
+    }
+
+    // Per-string Luhn against the packed batch path.
+    static void benchBatchLuhn(){
+        final int n = 100_000;
+        var rnd = new SplittableRandom(5);
+        var numbers = new String[n];
+        for(int i=0;i<n;i++){
+            var sb = new StringBuilder();
+            for(int k=0;k<16;k++) sb.append((char) ('0' + rnd.nextInt(10)));
+            numbers[i] = sb.toString();
+        }
+        measure("luhn batch (scalar luhnValid)", n, () -> count(LuhnBatch.validateScalar(numbers)));
+        measure("luhn batch (packed SWAR lanes)", n, () -> count(LuhnBatch.validate(numbers)));
+    }
+    private static long count(boolean[] flags){ long c = 0; for(boolean f : flags) if(f) c++; return c; }
+
+    // Regex-based constructor checks against the single-pass PaymentValidation ones.
+    static void benchValidation(){
+        final int n = 100_000;
+        var rnd = new SplittableRandom(3);
+        String[] cards = new String[n], upis = new String[n];
+        for(int i=0;i<n;i++){
+            cards[i] = i % 2 == 0 ? "4111 1111 1111 1111" : "4111111111111" + String.format(Locale.ROOT, "%03d", rnd.nextInt(1000));
+            upis[i] = i % 4 == 0 ? "bad@xx@yy" : "user." + i + "@oksbi";
+        }
+        final String upiRegex = "^[a-zA-Z0-9.\\-_]+@[a-zA-Z]+$";
+        measure("card (replaceAll + luhnValid)", n, () -> {
+            long ok = 0;
+            for(String c : cards){ String d = c.replaceAll("\\s+", ""); if(d.length() >= 12 && CreditCardPayment.luhnValid(d)) ok++; }
+            return ok;
+        });
+        measure("card (PaymentValidation.cardDigits)", n, () -> {
+            long ok = 0;
+            for(String c : cards) if(PaymentValidation.cardDigits(c) != null) ok++;
+            return ok;
+        });
+        measure("upi (String.matches)", n, () -> {
+            long ok = 0;
+            for(String u : upis) if(u.matches(upiRegex)) ok++;
+            return ok;
+        });
+        measure("upi (PaymentValidation.upiId)", n, () -> {
+            long ok = 0;
+            for(String u : upis) if(PaymentValidation.upiId(u)) ok++;
+            return ok;
+        });
+    }
+
+    // Retained heap after load, collector time during load, and findById tail latency.
+    static void benchRepositories(int n){
+        benchRepository("InMemoryTransactionRepository", new InMemoryTransactionRepository(), n);
+        benchRepository("OffHeapTransactionRepository", new OffHeapTransactionRepository(), n);
+    }
+
+    private static void benchRepository(String name, TransactionRepository repo, int n){
+        long heapBefore = usedHeapAfterGc(), gcBefore = gcMillis();
+        var t0 = Instant.parse("2025-01-01T00:00:00Z");
+        for(int i=0;i<n;i++)
+            repo.save(new Transaction(String.format(Locale.ROOT, "TXN-%08X", i), "user-" + (i % 50_000), i % 3 == 0 ? "Card" : "UPI",
+                    Currency.INR, 100_00, 102_00, "**** **** **** 1111", Status.SUCCESS, t0.plusMillis(i), new IdempotencyKey("idem-" + i)));
+        long gc = gcMillis() - gcBefore, heap = usedHeapAfterGc() - heapBefore;
+        var rnd = new SplittableRandom(11);
+        int samples = 200_000; long[] lat = new long[samples];
+        for(int i=0;i<samples;i++){
+            String id = String.format(Locale.ROOT, "TXN-%08X", rnd.nextInt(n));
+            long s0 = System.nanoTime();
+            sink += repo.findById(id).orElseThrow().capturedAmount;
+            lat[i] = System.nanoTime() - s0;
+        }
+        Arrays.sort(lat);
+        System.out.printf(Locale.US, "%-32s n=%,d heap=%,d MB gc=%,d ms findById p50=%,d ns p99=%,d ns%n", name, n,
+                heap >> 20, gc, lat[samples / 2], lat[(int) (samples * 0.99)]);
+    }
+
+    private static long usedHeapAfterGc(){
+        var rt = Runtime.getRuntime();
+        for(int i=0;i<3;i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+    private static long gcMillis(){
+        long total = 0;
+        for(var gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+}